@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ow2.bonita.facade.uuid.ProcessDefinitionUUID;
+import org.ow2.bonita.facade.uuid.ProcessInstanceUUID;
+import org.ow2.bonita.services.Document;
+import org.ow2.bonita.services.DocumentIndex;
+import org.ow2.bonita.services.DocumentSearchBuilder;
+import org.ow2.bonita.services.DocumentationManager;
+import org.ow2.bonita.services.SearchResult;
+
+/**
+ *
+ * Benchmarks of the main operations of the document manager, run them with java -jar target/benchmarks.jar
+ *
+ * The folder of the benchmarked instance contains documentCount documents, the operations reading a folder or searching
+ * depend on it.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DocumentManagerBenchmark {
+
+    private static final ProcessDefinitionUUID DEFINITION = new ProcessDefinitionUUID("benchProcess");
+    private static final ProcessInstanceUUID   INSTANCE   = new ProcessInstanceUUID("benchInstance");
+
+    @Param( { "10", "100" })
+    private int                                documentCount;
+
+    @Param( { "1024" })
+    private int                                contentSize;
+
+    private final AtomicLong                   counter    = new AtomicLong();
+    private DocumentationManager               manager;
+    private byte[]                             content;
+    private Document                           document;
+    private String                             folderId;
+    private DocumentSearchBuilder              searchByInstance;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        manager = new InMemoryDocumentManager();
+        manager.clear();
+        content = new byte[contentSize];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        for (int i = 0; i < documentCount; i++) {
+            document = manager.createDocument("doc" + i, DEFINITION, INSTANCE, "doc" + i + ".txt", "text/plain", content);
+        }
+        folderId = document.getParentFolderId();
+        searchByInstance = new DocumentSearchBuilder();
+        searchByInstance.criterion(DocumentIndex.PROCESS_INSTANCE_UUID).equalsTo(INSTANCE.getValue());
+    }
+
+    @Benchmark
+    public Document createDocument() throws Exception {
+        return manager.createDocument("new" + counter.incrementAndGet(), DEFINITION, new ProcessInstanceUUID("created"),
+                "new.txt", "text/plain", content);
+    }
+
+    @Benchmark
+    public Document createVersion() throws Exception {
+        return manager.createVersion(document.getId(), false, "version.txt", "text/plain", content);
+    }
+
+    @Benchmark
+    public SearchResult search() {
+        return manager.search(searchByInstance, 0, 20);
+    }
+
+    @Benchmark
+    public byte[] getContent() throws Exception {
+        return manager.getContent(document);
+    }
+
+    @Benchmark
+    public int getChildrenDocuments() {
+        return manager.getChildrenDocuments(folderId).size();
+    }
+
+    /**
+     * Clearing needs a populated repository for each invocation, it has its own state
+     */
+    @State(Scope.Thread)
+    public static class PopulatedRepository {
+
+        @Param( { "10" })
+        private int                  instanceCount;
+
+        private DocumentationManager manager;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            manager = new InMemoryDocumentManager();
+        }
+
+        @Setup(Level.Invocation)
+        public void populate() throws Exception {
+            for (int i = 0; i < instanceCount; i++) {
+                manager.createDocument("doc", DEFINITION, new ProcessInstanceUUID("clear" + i));
+            }
+        }
+    }
+
+    @Benchmark
+    public void clear(final PopulatedRepository repository) throws Exception {
+        repository.manager.clear();
+    }
+
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services.benchmarks;
+
+import java.util.Map;
+
+import org.ow2.bonita.services.CMISDocumentManager;
+import org.ow2.bonita.services.ClassicCmisUserProvider;
+
+/**
+ *
+ * Document manager connected through the local binding to an OpenCMIS InMemory repository running in the same JVM, so
+ * that the benchmarks measure the document manager and not the network.
+ *
+ */
+public class InMemoryDocumentManager extends CMISDocumentManager {
+
+    static final String         REPOSITORY_ID   = "bench";
+
+    private static final String SERVICE_FACTORY = "org.apache.chemistry.opencmis.inmemory.server.InMemoryServiceFactoryImpl";
+
+    // see org.apache.chemistry.opencmis.inmemory.ConfigConstants
+    private static final String IN_MEMORY_REPOSITORY_ID = "InMemoryServer.RepositoryId";
+
+    public InMemoryDocumentManager() {
+        super("LOCAL", SERVICE_FACTORY, REPOSITORY_ID, false, new ClassicCmisUserProvider("bench", "bench"));
+    }
+
+    @Override
+    protected Map<String, String> fixParameters(final String username, final String password) {
+        final Map<String, String> parameters = super.fixParameters(username, password);
+        parameters.put(IN_MEMORY_REPOSITORY_ID, REPOSITORY_ID);
+        return parameters;
+    }
+
+}
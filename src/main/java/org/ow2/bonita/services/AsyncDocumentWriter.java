@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.ow2.bonita.DocumentationCreationException;
+import org.ow2.bonita.facade.uuid.ProcessDefinitionUUID;
+import org.ow2.bonita.facade.uuid.ProcessInstanceUUID;
+
+/**
+ *
+ * Write-behind queue in front of a documentation manager: writes are acknowledged with a future as soon as they are
+ * queued and sent to the repository by a pool of workers.
+ *
+ * The versions of a document are sent one at a time in the order they were queued. Successive creations of documents
+ * in the same instance are sent together with
+ * {@link DocumentationManager#createDocuments(ProcessDefinitionUUID, ProcessInstanceUUID, List)}, which may upload them
+ * in parallel: the documents of a batch are created in no particular order, but a batch is sent only once the previous
+ * one of the instance is done. When the queue is full the callers wait for room. {@link #flush()} waits until every
+ * queued write is done, {@link #close()} stops the workers, which are daemon threads.
+ *
+ */
+public class AsyncDocumentWriter {
+
+    private final DocumentationManager            manager;
+    private final ExecutorService                 executor;
+    private final Semaphore                       capacity;
+    private final ConcurrentMap<Object, KeyQueue> queues      = new ConcurrentHashMap<Object, KeyQueue>();
+    private final Object                          pendingLock = new Object();
+    private int                                   pending;
+
+    /**
+     * @param queueCapacity
+     *            maximum number of writes queued or running
+     * @param workers
+     *            number of threads sending the writes, named async-document-writer-n
+     */
+    public AsyncDocumentWriter(final DocumentationManager manager, final int queueCapacity, final int workers) {
+        this.manager = manager;
+        this.capacity = new Semaphore(queueCapacity);
+        this.executor = Executors.newFixedThreadPool(workers, new NamedThreadFactory("async-document-writer"));
+    }
+
+    /**
+     * Queue the creation of a document, waits if the queue is full
+     * 
+     * @throws RejectedExecutionException
+     *             if the writer is closed
+     */
+    public Future<Document> createDocument(final String name, final ProcessDefinitionUUID definitionUUID,
+            final ProcessInstanceUUID instanceUUID, final String fileName, final String contentMimeType,
+            final byte[] fileContent) throws InterruptedException {
+        final Write write = new Write(null, new DocumentCreation(name, fileName, contentMimeType, fileContent),
+                definitionUUID, instanceUUID);
+        submit(instanceUUID != null ? instanceUUID : definitionUUID, write);
+        return write.result;
+    }
+
+    /**
+     * Queue the creation of a new version of a document, waits if the queue is full
+     * 
+     * @throws RejectedExecutionException
+     *             if the writer is closed
+     */
+    public Future<Document> createVersion(final String documentId, final boolean isMajorVersion, final String fileName,
+            final String mimeType, final byte[] content) throws InterruptedException {
+        final Write write = new Write(documentId, new DocumentCreation(null, fileName, mimeType, content), null, null);
+        write.majorVersion = isMajorVersion;
+        submit(documentId, write);
+        return write.result;
+    }
+
+    /**
+     * Wait until all the writes queued so far are done
+     */
+    public void flush() throws InterruptedException {
+        synchronized (pendingLock) {
+            while (pending > 0) {
+                pendingLock.wait();
+            }
+        }
+    }
+
+    /**
+     * @return false if some writes were still running after the timeout
+     */
+    public boolean flush(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (pendingLock) {
+            while (pending > 0) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(pendingLock, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Flush the queue and stop the workers
+     */
+    public void close() throws InterruptedException {
+        flush();
+        executor.shutdown();
+    }
+
+    private void submit(final Object key, final Write write) throws InterruptedException {
+        capacity.acquire();
+        synchronized (pendingLock) {
+            pending++;
+        }
+        while (true) {
+            KeyQueue queue = queues.get(key);
+            if (queue == null) {
+                final KeyQueue newQueue = new KeyQueue(key);
+                queue = queues.putIfAbsent(key, newQueue);
+                if (queue == null) {
+                    queue = newQueue;
+                }
+            }
+            synchronized (queue) {
+                if (queue.retired) {
+                    // emptied and removed by its worker, use a new one
+                    continue;
+                }
+                queue.writes.add(write);
+                if (!queue.scheduled) {
+                    queue.scheduled = true;
+                    try {
+                        executor.execute(queue);
+                    } catch (final RejectedExecutionException e) {
+                        // closed: the queue was new and only holds this write
+                        queue.writes.remove(write);
+                        queue.scheduled = false;
+                        queue.retired = true;
+                        queues.remove(key, queue);
+                        done(1);
+                        throw e;
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private void done(final int count) {
+        capacity.release(count);
+        synchronized (pendingLock) {
+            pending -= count;
+            pendingLock.notifyAll();
+        }
+    }
+
+    /**
+     * Writes of a process instance or of a document, run by one worker at a time
+     */
+    private final class KeyQueue implements Runnable {
+
+        private final Object            key;
+        private final LinkedList<Write> writes = new LinkedList<Write>();
+        private boolean                 scheduled;
+        private boolean                 retired;
+
+        KeyQueue(final Object key) {
+            this.key = key;
+        }
+
+        public void run() {
+            while (true) {
+                final List<Write> batch = new ArrayList<Write>();
+                synchronized (this) {
+                    if (writes.isEmpty()) {
+                        scheduled = false;
+                        retired = true;
+                        queues.remove(key, this);
+                        return;
+                    }
+                    batch.add(writes.removeFirst());
+                    if (batch.get(0).documentId == null) {
+                        while (!writes.isEmpty() && writes.getFirst().documentId == null) {
+                            batch.add(writes.removeFirst());
+                        }
+                    }
+                }
+                try {
+                    send(batch);
+                } finally {
+                    done(batch.size());
+                }
+            }
+        }
+
+        private void send(final List<Write> batch) {
+            final Write first = batch.get(0);
+            try {
+                if (first.documentId != null) {
+                    final DocumentCreation content = first.content;
+                    first.result.set(manager.createVersion(first.documentId, first.majorVersion, content.getFileName(),
+                            content.getContentMimeType(), content.getContent(), content.getContentLength()));
+                    return;
+                }
+                final List<DocumentCreation> creations = new ArrayList<DocumentCreation>(batch.size());
+                for (final Write write : batch) {
+                    creations.add(write.content);
+                }
+                final DocumentCreationResult result = manager.createDocuments(first.definitionUUID, first.instanceUUID,
+                        creations);
+                for (int i = 0; i < batch.size(); i++) {
+                    final DocumentationCreationException failure = result.getFailures().get(i);
+                    if (failure != null) {
+                        batch.get(i).result.fail(failure);
+                    } else {
+                        batch.get(i).result.set(result.getDocuments().get(i));
+                    }
+                }
+            } catch (final Throwable t) {
+                for (final Write write : batch) {
+                    write.result.fail(t);
+                }
+            }
+        }
+    }
+
+    /**
+     * A queued creation of a document, or of a version if documentId is set
+     */
+    private static final class Write {
+
+        private final String                documentId;
+        private final DocumentCreation      content;
+        private final ProcessDefinitionUUID definitionUUID;
+        private final ProcessInstanceUUID   instanceUUID;
+        private boolean                     majorVersion;
+        private final WriteResult           result = new WriteResult();
+
+        Write(final String documentId, final DocumentCreation content, final ProcessDefinitionUUID definitionUUID,
+                final ProcessInstanceUUID instanceUUID) {
+            this.documentId = documentId;
+            this.content = content;
+            this.definitionUUID = definitionUUID;
+            this.instanceUUID = instanceUUID;
+        }
+    }
+
+    /**
+     * Completed by the worker, a write can't be cancelled once queued
+     */
+    private static final class WriteResult implements Future<Document> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Document    document;
+        private volatile Throwable   error;
+
+        void set(final Document document) {
+            this.document = document;
+            done.countDown();
+        }
+
+        void fail(final Throwable error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public Document get() throws InterruptedException, ExecutionException {
+            done.await();
+            return getResult();
+        }
+
+        public Document get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getResult();
+        }
+
+        private Document getResult() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return document;
+        }
+    }
+
+}
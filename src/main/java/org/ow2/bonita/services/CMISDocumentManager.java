@@ -19,21 +19,44 @@ package org.ow2.bonita.services;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.activation.MimeType;
 import javax.activation.MimeTypeParseException;
@@ -42,6 +65,7 @@ import org.apache.chemistry.opencmis.client.api.CmisObject;
 import org.apache.chemistry.opencmis.client.api.Folder;
 import org.apache.chemistry.opencmis.client.api.ItemIterable;
 import org.apache.chemistry.opencmis.client.api.ObjectId;
+import org.apache.chemistry.opencmis.client.api.OperationContext;
 import org.apache.chemistry.opencmis.client.api.QueryResult;
 import org.apache.chemistry.opencmis.client.api.Session;
 import org.apache.chemistry.opencmis.client.api.SessionFactory;
@@ -49,16 +73,25 @@ import org.apache.chemistry.opencmis.client.runtime.SessionFactoryImpl;
 import org.apache.chemistry.opencmis.commons.PropertyIds;
 import org.apache.chemistry.opencmis.commons.SessionParameter;
 import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.data.ObjectParentData;
 import org.apache.chemistry.opencmis.commons.data.PropertyData;
 import org.apache.chemistry.opencmis.commons.enums.BindingType;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.commons.enums.Updatability;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisBaseException;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisNotSupportedException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisObjectNotFoundException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisRuntimeException;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.commons.spi.Holder;
+import org.apache.chemistry.opencmis.commons.spi.NavigationService;
+import org.apache.chemistry.opencmis.commons.spi.ObjectService;
 import org.ow2.bonita.DocumentAlreadyExistsException;
 import org.ow2.bonita.DocumentNotFoundException;
 import org.ow2.bonita.DocumentationCreationException;
 import org.ow2.bonita.FolderAlreadyExistsException;
+import org.ow2.bonita.facade.uuid.AbstractUUID;
 import org.ow2.bonita.facade.uuid.ProcessDefinitionUUID;
 import org.ow2.bonita.facade.uuid.ProcessInstanceUUID;
 import org.slf4j.Logger;
@@ -87,17 +120,66 @@ public class CMISDocumentManager implements DocumentationManager {
     private final String                             binding;
     private final String                             url;
     private final String                             repositoryId;
-    private String                                   rootFolderId;
-    private final Map<String, Session>               sessionsMap          = new HashMap<String, Session>();
+    private volatile String                          rootFolderId;
+    private final CmisSessionPool                    sessionPool;
+    private final CmisObjectCache                    objectCache;
+    private final int                                bulkConcurrency;
+    private final int                                deletionConcurrency;
+    private final ExecutorService                    executor;
+    private final FolderIndex                        folderIndex;
+    private final ContentIndex                       contentIndex;
+    private final ContentCache                       contentCache;
+    private final ContentCodec                       contentCodec;
+    private final File                               uploadDirectory;
+    private final long                               uploadExpiry;
+    private volatile long                            nextUploadSweep;
+    private final ConcurrentMap<String, ChunkedUpload> uploads          = new ConcurrentHashMap<String, ChunkedUpload>();
+    private volatile boolean                         copyFromSourceSupported = true;
+    /** null until a ranged read without length tells whether the repository applies the offset of ranges */
+    private volatile Boolean                         offsetApplied;
+    private final Map<OperationContextProfile, OperationContext> operationContexts = new EnumMap<OperationContextProfile, OperationContext>(
+                                                                                            OperationContextProfile.class);
     private final boolean                            isServerUseLocalTime;
-    private final Map<ProcessDefinitionUUID, String> processDefinitionMap = new HashMap<ProcessDefinitionUUID, String>();
-    private final Map<ProcessInstanceUUID, String>   processInstanceMap   = new HashMap<ProcessInstanceUUID, String>();
+    private final ConcurrentMap<ProcessDefinitionUUID, String> processDefinitionMap = new ConcurrentHashMap<ProcessDefinitionUUID, String>();
+    private final ConcurrentMap<ProcessInstanceUUID, String>   processInstanceMap   = new ConcurrentHashMap<ProcessInstanceUUID, String>();
+    private final ConcurrentMap<String, Boolean>     unverifiedFolders    = new ConcurrentHashMap<String, Boolean>();
+    private final Object[]                           folderLocks          = new Object[FOLDER_LOCK_STRIPES];
+    private final LruCache<String, QueryTemplate>    queryTemplates       = new LruCache<String, QueryTemplate>(MAX_QUERY_TEMPLATES);
+    private final StringPool                         stringPool           = new StringPool(MAX_POOLED_STRINGS);
+    private final LruCache<String, ParentFolder>     documentParents      = new LruCache<String, ParentFolder>(MAX_CACHED_PARENTS);
     private final CmisUserProvider                   userProvider;
 
     private static final Logger                      LOGGER               = LoggerFactory.getLogger(CMISDocumentManager.class);
 
     private final String                             pathOfRootFolder;
 
+    private static final int                         COPY_BUFFER_SIZE     = 64 * 1024;
+
+    private static final int                         FOLDER_LOCK_STRIPES  = 64;
+
+    private static final int                         MAX_QUERY_TEMPLATES  = 256;
+
+    private static final int                         MAX_POOLED_STRINGS   = 10000;
+
+    private static final int                         MAX_CACHED_PARENTS   = 10000;
+
+    private static final long                        UPLOAD_SWEEP_INTERVAL = 60 * 60 * 1000L;
+
+    private static final long                        MAX_PREHASHED_CONTENT = 16 * 1024 * 1024;
+
+    private static final Set<Updatability>           CHECK_IN_UPDATABILITY = Collections.unmodifiableSet(EnumSet.of(
+                                                                                   Updatability.READWRITE,
+                                                                                   Updatability.WHENCHECKEDOUT));
+
+    private static final int                         COUNT_PAGE_SIZE      = 1000;
+
+    private static final Set<DocumentField>          COUNT_PROJECTION     = Collections.unmodifiableSet(EnumSet
+                                                                                  .of(DocumentField.ID));
+
+    private static final String                      PARENT_FILTER        = PropertyIds.OBJECT_ID + "," + PropertyIds.PATH;
+    private static final String                      FOLDER_COLUMNS       = PropertyIds.OBJECT_ID + "," + PropertyIds.NAME + ","
+                                                                                  + PropertyIds.PARENT_ID;
+
     public CMISDocumentManager(final String binding, final String url, final String repositoryId,
             final Boolean isServerUseLocalTime, final CmisUserProvider userProvider) {
         this(binding, url, repositoryId, isServerUseLocalTime, userProvider, "/");
@@ -105,46 +187,164 @@ public class CMISDocumentManager implements DocumentationManager {
 
     public CMISDocumentManager(final String binding, final String url, final String repositoryId,
             final Boolean isServerUseLocalTime, final CmisUserProvider userProvider, final String pathOfRootFolder) {
+        this(binding, url, repositoryId, isServerUseLocalTime, userProvider, pathOfRootFolder,
+                new CMISDocumentManagerConfiguration());
+    }
+
+    public CMISDocumentManager(final String binding, final String url, final String repositoryId,
+            final Boolean isServerUseLocalTime, final CmisUserProvider userProvider, final String pathOfRootFolder,
+            final CMISDocumentManagerConfiguration configuration) {
         this.binding = binding;
         this.url = url;
         this.repositoryId = repositoryId;
         this.isServerUseLocalTime = isServerUseLocalTime;
         this.userProvider = userProvider;
         this.pathOfRootFolder = pathOfRootFolder;
+        this.sessionPool = new CmisSessionPool(configuration.getMaxPooledUsers(), configuration.getSessionIdleTimeout(),
+                configuration.getSessionsPerUser()) {
+
+            protected Session createSession(final String userId) {
+                return openSession(repositoryId, userId);
+            }
+
+        };
+        this.bulkConcurrency = Math.max(1, configuration.getBulkConcurrency());
+        this.deletionConcurrency = Math.max(1, configuration.getDeletionConcurrency());
+        // the calling thread always takes part in the work
+        final int workers = Math.max(bulkConcurrency, deletionConcurrency) - 1;
+        if (workers > 0) {
+            this.executor = Executors.newFixedThreadPool(workers, new NamedThreadFactory("cmis-document-manager"));
+        } else {
+            this.executor = null;
+        }
+        for (int i = 0; i < folderLocks.length; i++) {
+            folderLocks[i] = new Object();
+        }
+        if (configuration.isObjectCacheEnabled()) {
+            this.objectCache = new CmisObjectCache(configuration.getMaxCachedDocuments(), configuration.getMaxCachedFolders(),
+                    configuration.getObjectCacheTtl());
+        } else {
+            this.objectCache = null;
+        }
+        for (final OperationContextProfile profile : OperationContextProfile.values()) {
+            operationContexts.put(profile, configuration.getOperationContext(profile));
+        }
+        if (configuration.getFolderIndexFile() != null) {
+            this.folderIndex = new FolderIndex(configuration.getFolderIndexFile(), url + "|" + repositoryId + "|"
+                    + pathOfRootFolder);
+            folderIndex.load(processDefinitionMap, processInstanceMap);
+            for (final String folderId : processDefinitionMap.values()) {
+                unverifiedFolders.put(folderId, Boolean.TRUE);
+            }
+            for (final String folderId : processInstanceMap.values()) {
+                unverifiedFolders.put(folderId, Boolean.TRUE);
+            }
+        } else {
+            this.folderIndex = null;
+        }
+        if (configuration.isContentDeduplicationEnabled() && "ATOM".equals(binding)) {
+            // the AtomPub binding of OpenCMIS has no createDocumentFromSource
+            LOGGER.warn("Content deduplication is not available with the AtomPub binding, it is disabled");
+            this.contentIndex = null;
+        } else if (configuration.isContentDeduplicationEnabled()) {
+            this.contentIndex = new ContentIndex(configuration.getMaxIndexedContents());
+        } else {
+            this.contentIndex = null;
+        }
+        this.uploadDirectory = configuration.getUploadDirectory();
+        this.uploadExpiry = configuration.getUploadExpiry();
+        if (!configuration.getCompressedMimeTypes().isEmpty()) {
+            this.contentCodec = new ContentCodec(configuration.getCompressedMimeTypes());
+        } else {
+            this.contentCodec = null;
+        }
+        if (configuration.getContentCacheDirectory() != null) {
+            this.contentCache = new ContentCache(configuration.getContentCacheDirectory(), configuration.getContentCacheSize());
+        } else {
+            this.contentCache = null;
+        }
         java.net.CookieManager cm = new java.net.CookieManager(null, java.net.CookiePolicy.ACCEPT_ALL);
         java.net.CookieHandler.setDefault(cm);
     }
 
-    public synchronized Session createSessionById(final String repositoryId, String userId2) {
-        final SessionFactory f = SessionFactoryImpl.newInstance();
+    public Session createSessionById(final String repositoryId, String userId2) {
         String userId;
         if (userId2 == null) {
             userId = "SYSTEM";
         } else {
             userId = userId2;
         }
-        Session session = sessionsMap.get(userId);
-        if (session == null) {
-            final Map<String, String> parameter = fixParameters(userProvider.getUser(userId), userProvider.getPassword(userId));
-            parameter.put(SessionParameter.REPOSITORY_ID, repositoryId);
-            session = f.createSession(parameter);
-            if (rootFolderId == null) {
-                final CmisObject rootFolder = session.getObjectByPath(pathOfRootFolder);
-                this.rootFolderId = rootFolder.getId();
-            }
-            sessionsMap.put(userId, session);
+        if (this.repositoryId.equals(repositoryId)) {
+            return sessionPool.getSession(userId);
+        }
+        return openSession(repositoryId, userId);
+    }
+
+    private Session openSession(final String repositoryId, final String userId) {
+        final SessionFactory f = SessionFactoryImpl.newInstance();
+        final Map<String, String> parameter = fixParameters(userProvider.getUser(userId), userProvider.getPassword(userId));
+        parameter.put(SessionParameter.REPOSITORY_ID, repositoryId);
+        final Session session = f.createSession(parameter);
+        if (rootFolderId == null) {
+            final CmisObject rootFolder = session.getObjectByPath(pathOfRootFolder);
+            this.rootFolderId = rootFolder.getId();
         }
         return session;
     }
 
-    public synchronized Session getSession() {
+    public Session getSession() {
         return createSessionById(repositoryId, null);
     }
 
-    public synchronized Session getSession(String userId) {
+    public Session getSession(String userId) {
         return createSessionById(repositoryId, userId);
     }
 
+    /**
+     * Versioning reads always go to the server, they need the current check out state
+     */
+    private CmisObject getObject(final Session session, final String objectId, final OperationContextProfile profile) {
+        final boolean cacheable = objectCache != null && profile != OperationContextProfile.VERSIONING;
+        if (cacheable) {
+            final CmisObject cachedObject = objectCache.get(session, objectId);
+            CallStatistics.cacheAccess(cachedObject != null);
+            if (cachedObject != null) {
+                return cachedObject;
+            }
+        }
+        final CmisObject object = session.getObject(session.createObjectId(objectId), operationContexts.get(profile));
+        if (cacheable) {
+            objectCache.put(session, object);
+        }
+        return object;
+    }
+
+    private void invalidate(final String objectId) {
+        documentParents.remove(objectId);
+        if (objectCache != null) {
+            objectCache.invalidate(objectId);
+        }
+        if (contentCache != null) {
+            contentCache.remove(objectId);
+        }
+    }
+
+    private void invalidateVersionSeries(final String versionSeriesId) {
+        if (objectCache != null) {
+            objectCache.invalidateVersionSeries(versionSeriesId);
+        }
+    }
+
+    private void invalidateAll() {
+        documentParents.clear();
+        if (objectCache != null) {
+            objectCache.clear();
+        }
+        if (contentCache != null) {
+            contentCache.clear();
+        }
+    }
+
     protected Map<String, String> fixParameters(final String username, final String password) {
         final Map<String, String> parameter = new HashMap<String, String>();
 
@@ -165,6 +365,13 @@ public class CMISDocumentManager implements DocumentationManager {
             parameter.put(SessionParameter.AUTH_HTTP_BASIC, "false");
             parameter.put(SessionParameter.AUTH_SOAP_USERNAMETOKEN, "false");
             parameter.put(SessionParameter.BINDING_TYPE, BindingType.WEBSERVICES.value());
+        } else if ("LOCAL".equals(binding)) {
+            // in-process repository, the url is the class name of its service factory
+            parameter.put(SessionParameter.BINDING_TYPE, BindingType.LOCAL.value());
+            parameter.put(SessionParameter.LOCAL_FACTORY, url);
+        }
+        if (!"LOCAL".equals(binding)) {
+            parameter.put(SessionParameter.AUTHENTICATION_PROVIDER_CLASS, RoundTripCountingAuthenticationProvider.class.getName());
         }
         parameter.put(SessionParameter.ATOMPUB_URL, url);
         parameter.put(SessionParameter.USER, username);
@@ -190,7 +397,7 @@ public class CMISDocumentManager implements DocumentationManager {
             throws FolderAlreadyExistsException {
         final Folder folder;
         try {
-            folder = (Folder) session.getObject(session.createObjectId(parentFolderId));
+            folder = (Folder) getObject(session, parentFolderId, OperationContextProfile.MINIMAL_METADATA);
         } catch (CmisRuntimeException e) {
             throw new FolderAlreadyExistsException(folderName, e);
         }
@@ -198,15 +405,12 @@ public class CMISDocumentManager implements DocumentationManager {
         properties.put(PropertyIds.NAME, folderName);
         properties.put(PropertyIds.OBJECT_TYPE_ID, "cmis:folder");
         properties.put(PropertyIds.PARENT_ID, parentFolderId);
-        ItemIterable<CmisObject> children = folder.getChildren();
-        for (CmisObject cmisObject : children) {
-            if (folderName.equals(cmisObject.getName())) {
-                throw new FolderAlreadyExistsException(folderName);
-            }
+        if (getChildByName(session, folder, folderName) != null) {
+            throw new FolderAlreadyExistsException(folderName);
         }
         try {
             final Folder child = folder.createFolder(properties, null, null, null, session.getDefaultContext());
-            return convertFolder(child);
+            return convertFolder(child, parentFolderId);
         } catch (final CmisRuntimeException e) {
             LOGGER.error("Can't create folder", e);
             throw new FolderAlreadyExistsException(folderName);
@@ -227,19 +431,17 @@ public class CMISDocumentManager implements DocumentationManager {
      */
     private Document createDocument(final Session session, final String name, final String parentFolderId)
             throws DocumentationCreationException {
-        final Folder folder = (Folder) session.getObject(session.createObjectId(parentFolderId));
+        final Folder folder = (Folder) getObject(session, parentFolderId, OperationContextProfile.MINIMAL_METADATA);
         final Map<String, String> newDocProps = new HashMap<String, String>();
         newDocProps.put(PropertyIds.OBJECT_TYPE_ID, "cmis:document");
         newDocProps.put(PropertyIds.NAME, name);
         try {
-            for (CmisObject object : folder.getChildren()) {
-                if (name.equals(object.getName())) {
-                    throw new DocumentationCreationException("Document may alreadyExists: " + name);
-                }
+            if (getChildByName(session, folder, name) != null) {
+                throw new DocumentationCreationException("Document may alreadyExists: " + name);
             }
             final org.apache.chemistry.opencmis.client.api.Document doc = folder.createDocument(newDocProps, null, null, null,
                     null, null, session.getDefaultContext());
-            return convertDocument(doc);
+            return convertDocument(doc, new ParentFolder(folder.getId(), folder.getPath()));
         } catch (final CmisBaseException e) {
             LOGGER.error("Can't create folder", e);
             throw new DocumentationCreationException("Document may alreadyExists: " + name + "\n" + e.getMessage());
@@ -249,9 +451,9 @@ public class CMISDocumentManager implements DocumentationManager {
     public Document getDocument(final String documentId) throws DocumentNotFoundException {
         final Session session2 = getSession();
         try {
-            final org.apache.chemistry.opencmis.client.api.Document doc = (org.apache.chemistry.opencmis.client.api.Document) session2
-                    .getObject(session2.createObjectId(documentId));
-            return convertDocument(doc);
+            final org.apache.chemistry.opencmis.client.api.Document doc = (org.apache.chemistry.opencmis.client.api.Document) getObject(
+                    session2, documentId, OperationContextProfile.MINIMAL_METADATA);
+            return convertDocument(session2, doc);
         } catch (final CmisObjectNotFoundException e) {
             throw new DocumentNotFoundException(documentId);
         }
@@ -263,64 +465,48 @@ public class CMISDocumentManager implements DocumentationManager {
         return createDocument(session, name, parentFolderId, fileName, contentMimeType, fileContent);
     }
 
+    public Document createDocument(final String name, final String parentFolderId, final String fileName,
+            final String contentMimeType, final InputStream content, final long contentLength)
+            throws DocumentationCreationException {
+        final Session session = getSession();
+        return createDocument(session, name, parentFolderId, fileName, contentMimeType, content, contentLength);
+    }
+
+    private Document createDocument(final Session session, final String name, final String parentFolderId, final String fileName,
+            final String contentMimeType, final byte[] fileContent) throws DocumentationCreationException {
+        if (fileContent == null) {
+            return createDocument(session, name, parentFolderId, fileName, contentMimeType, null, 0);
+        }
+        return createDocument(session, name, parentFolderId, fileName, contentMimeType, new ByteArrayInputStream(fileContent),
+                fileContent.length);
+    }
+
     /**
      * @param session
      * @param name
      * @param parentFolderId
      * @param fileName
      * @param contentMimeType
-     * @param contentSize
-     * @param fileContent
+     * @param content
+     *            the content, sent as is to the server, it is not closed
+     * @param contentLength
+     *            the length of the content or -1 if unknown, if 0 the document is created without content
      * @return
      * @throws DocumentationCreationException
      */
     private Document createDocument(final Session session, final String name, final String parentFolderId, final String fileName,
-            final String contentMimeType, final byte[] fileContent) throws DocumentationCreationException {
-        if (contentMimeType != null) {
-            try {
-                new MimeType(contentMimeType);
-            } catch (final MimeTypeParseException e1) {
-                throw new DocumentationCreationException("Mime type not valid", e1);
-            }
-        }
-        final Folder folder = (Folder) session.getObject(session.createObjectId(parentFolderId));
-
-        final Map<String, String> newDocProps = new HashMap<String, String>();
-        newDocProps.put(PropertyIds.OBJECT_TYPE_ID, "cmis:document");
-        newDocProps.put(PropertyIds.NAME, name);
-        newDocProps.put(PropertyIds.CONTENT_STREAM_FILE_NAME, fileName);
-
-        BigInteger length;
-        if (fileContent != null && fileContent.length > 0) {
-            length = BigInteger.valueOf(fileContent.length);
-        } else {
-            length = null;
-        }
-        final ContentStream contentStream;
-        if (fileContent == null || fileContent.length <= 0) {
-            contentStream = null;
-        } else {
-            final ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(fileContent);
-            try {
-                contentStream = new ContentStreamImpl(fileName, length, contentMimeType, byteArrayInputStream);
-            } catch (final CmisBaseException e) {
-                throw new DocumentationCreationException("Can't create the content of the document " + name + "\n"
-                        + e.getMessage());
-            } finally {
-                try {
-                    byteArrayInputStream.close();
-                } catch (final IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+            final String contentMimeType, final InputStream content, final long contentLength)
+            throws DocumentationCreationException {
+        final DocumentCreation document = new DocumentCreation(name, fileName, contentMimeType, content, contentLength);
+        final boolean replayable = markContent(document);
         try {
-            final String id = folder.createDocument(newDocProps, contentStream, null, null, null, null,
-                    session.getDefaultContext()).getId();
-            return convertDocument((org.apache.chemistry.opencmis.client.api.Document) session.getObject(session
-                    .createObjectId(id)));
-        } catch (final CmisBaseException e) {
-            throw new DocumentationCreationException("Document may alreadyExists: " + name + "\n" + e.getMessage());
+            return createDocument(session, parentFolderId, document);
+        } catch (final DocumentationCreationException e) {
+            // a cached parent deleted by someone else: the retry fails as if it was not cached
+            if (!evictDeletedFolder(session, parentFolderId) || !replayable || !resetContent(document)) {
+                throw e;
+            }
+            return createDocument(session, parentFolderId, document);
         }
     }
 
@@ -333,43 +519,131 @@ public class CMISDocumentManager implements DocumentationManager {
         } else {
             parentId = null;
         }
+        return convertFolder(cmisFolder, parentId);
+    }
+
+    private org.ow2.bonita.services.Folder convertFolder(final Folder cmisFolder, final String parentId) {
         final FolderImpl folderImpl = new FolderImpl(cmisFolder.getName(), parentId);
         folderImpl.setId(cmisFolder.getId());
         return folderImpl;
     }
 
-    private org.ow2.bonita.services.Document convertDocument(final org.apache.chemistry.opencmis.client.api.Document document) {
+    private org.ow2.bonita.services.Document convertDocument(final Session session,
+            final org.apache.chemistry.opencmis.client.api.Document document) {
+        return convertDocument(document, getParent(session, document));
+    }
+
+    /**
+     * @return the first parent of the document, resolved by {@link #resolveParents(Session, List, String)}
+     */
+    private ParentFolder getParent(final Session session, final org.apache.chemistry.opencmis.client.api.Document document) {
+        final ParentFolder parent = resolveParents(session, Collections.singletonList(document.getId()), null).get(
+                document.getId());
+        if (parent != null) {
+            return parent;
+        }
+        final Folder folder = document.getParents().get(0);
+        return new ParentFolder(folder.getId(), folder.getPath());
+    }
+
+    private org.ow2.bonita.services.Document convertDocument(final org.apache.chemistry.opencmis.client.api.Document document,
+            final ParentFolder parent) {
         Boolean latestVersion = document.isLatestVersion();
         Boolean majorVersion = document.isMajorVersion();
-        Folder folder = document.getParents().get(0);
-        String path = folder.getPath().substring(1);
-        String[] split = path.split("/");
-        ProcessInstanceUUID processInstanceUUID = null;
-        ProcessDefinitionUUID processDefinitionUUID = null;
-        if (split.length >= 2) {// will work only if children of the folder
-            processDefinitionUUID = new ProcessDefinitionUUID(split[split.length - 2]);
-            processInstanceUUID = new ProcessInstanceUUID(split[split.length - 1]);
-        }
-        final DocumentImpl doc = new DocumentImpl(document.getName(), folder.getId(), document.getCreatedBy(),
-                convertDate(document.getCreationDate()), convertDate(document.getLastModificationDate()),
-                latestVersion != null ? latestVersion : false, majorVersion != null ? majorVersion : false,
-                document.getVersionLabel(), document.getVersionSeriesId(), document.getContentStreamFileName(),
-                document.getContentStreamMimeType(), document.getContentStreamLength(), processDefinitionUUID,
-                processInstanceUUID);
-        doc.setId(document.getId());
-        return doc;
+        final String storedMimeType = document.getContentStreamMimeType();
+        return new CompactDocument(document.getId(), document.getName(), stringPool.get(parent.id),
+                stringPool.get(document.getCreatedBy()), toMillis(document.getCreationDate()),
+                toMillis(document.getLastModificationDate()), latestVersion != null ? latestVersion : false,
+                majorVersion != null ? majorVersion : false, stringPool.get(document.getVersionLabel()),
+                document.getVersionSeriesId(), document.getContentStreamFileName(),
+                stringPool.get(ContentCodec.baseMimeType(storedMimeType)), ContentCodec.originalLength(storedMimeType,
+                        document.getContentStreamLength()), stringPool.get(parent.processDefinitionUUID),
+                stringPool.get(parent.processInstanceUUID), ContentCodec.isEncoded(storedMimeType));
     }
 
-    private Date convertDate(GregorianCalendar creationDate) {
-        Date convertedDate;
-        if (creationDate != null) {
-            long timeInMillis = creationDate.getTimeInMillis();
+    /**
+     * Build the document directly from the properties returned by the query, no additional call is made
+     */
+    private org.ow2.bonita.services.Document convertQueryResult(final QueryResult queryResult, final ParentFolder parent) {
+        final Boolean latestVersion = queryResult.getPropertyValueById(PropertyIds.IS_LATEST_VERSION);
+        final Boolean majorVersion = queryResult.getPropertyValueById(PropertyIds.IS_MAJOR_VERSION);
+        final BigInteger contentLength = queryResult.getPropertyValueById(PropertyIds.CONTENT_STREAM_LENGTH);
+        final String storedMimeType = queryResult.getPropertyValueById(PropertyIds.CONTENT_STREAM_MIME_TYPE);
+        return new CompactDocument((String) queryResult.getPropertyValueById(PropertyIds.OBJECT_ID),
+                (String) queryResult.getPropertyValueById(PropertyIds.NAME), parent != null ? stringPool.get(parent.id)
+                        : null, stringPool.get((String) queryResult.getPropertyValueById(PropertyIds.CREATED_BY)),
+                toMillis((GregorianCalendar) queryResult.getPropertyValueById(PropertyIds.CREATION_DATE)),
+                toMillis((GregorianCalendar) queryResult.getPropertyValueById(PropertyIds.LAST_MODIFICATION_DATE)),
+                latestVersion != null ? latestVersion : false, majorVersion != null ? majorVersion : false,
+                stringPool.get((String) queryResult.getPropertyValueById(PropertyIds.VERSION_LABEL)),
+                (String) queryResult.getPropertyValueById(PropertyIds.VERSION_SERIES_ID),
+                (String) queryResult.getPropertyValueById(PropertyIds.CONTENT_STREAM_FILE_NAME),
+                stringPool.get(ContentCodec.baseMimeType(storedMimeType)), ContentCodec.originalLength(storedMimeType,
+                        contentLength != null ? contentLength.longValue() : 0), parent != null ? stringPool
+                        .get(parent.processDefinitionUUID) : null, parent != null ? stringPool
+                        .get(parent.processInstanceUUID) : null, ContentCodec.isEncoded(storedMimeType));
+    }
 
-            convertedDate = new Date(timeInMillis);
-        } else {
-            convertedDate = null;
+    /**
+     * Resolve the parent folder of all the given documents at once.
+     * 
+     * If all documents are known to be in the same folder only this folder is fetched. Otherwise the parents already
+     * resolved by previous rows, pages or searches are reused and one lightweight getObjectParents call is made per
+     * remaining document (CMIS has no multi-object variant), each distinct folder being resolved only once.
+     */
+    private Map<String, ParentFolder> resolveParents(final Session session, final List<String> documentIds,
+            final String knownParentId) {
+        final Map<String, ParentFolder> parents = new HashMap<String, ParentFolder>();
+        if (documentIds.isEmpty()) {
+            return parents;
         }
-        return convertedDate;
+        if (knownParentId != null) {
+            final Folder folder = (Folder) getObject(session, knownParentId, OperationContextProfile.MINIMAL_METADATA);
+            final ParentFolder parent = new ParentFolder(folder.getId(), folder.getPath());
+            for (final String documentId : documentIds) {
+                parents.put(documentId, parent);
+            }
+            return parents;
+        }
+        final Map<String, ParentFolder> folders = new HashMap<String, ParentFolder>();
+        final NavigationService navigationService = session.getBinding().getNavigationService();
+        for (final String documentId : documentIds) {
+            final ParentFolder cached = documentParents.get(documentId);
+            if (cached != null) {
+                parents.put(documentId, cached);
+                folders.put(cached.id, cached);
+                continue;
+            }
+            final List<ObjectParentData> objectParents = navigationService.getObjectParents(repositoryId, documentId,
+                    PARENT_FILTER, false, IncludeRelationships.NONE, "cmis:none", false, null);
+            if (objectParents == null || objectParents.isEmpty()) {
+                continue;
+            }
+            final ObjectData parentData = objectParents.get(0).getObject();
+            ParentFolder parent = folders.get(parentData.getId());
+            if (parent == null) {
+                final PropertyData<?> pathProperty = parentData.getProperties().getProperties().get(PropertyIds.PATH);
+                String path;
+                if (pathProperty != null && pathProperty.getFirstValue() != null) {
+                    path = (String) pathProperty.getFirstValue();
+                } else {
+                    path = ((Folder) getObject(session, parentData.getId(), OperationContextProfile.MINIMAL_METADATA))
+                            .getPath();
+                }
+                parent = new ParentFolder(parentData.getId(), path);
+                folders.put(parent.id, parent);
+            }
+            documentParents.put(documentId, parent);
+            parents.put(documentId, parent);
+        }
+        return parents;
+    }
+
+    /**
+     * @return the time in milliseconds or {@link Long#MIN_VALUE} for no date, see {@link CompactDocument}
+     */
+    private static long toMillis(final GregorianCalendar calendar) {
+        return calendar != null ? calendar.getTimeInMillis() : Long.MIN_VALUE;
     }
 
     private Date localToServerDate(Date localDate) {
@@ -386,12 +660,16 @@ public class CMISDocumentManager implements DocumentationManager {
         return getChildrenDocuments(session2, folderId);
     }
 
+    /**
+     * The children are converted with the listed folder as parent, the listing costs one request per page
+     */
     private List<Document> getChildrenDocuments(Session session, final String folderId) {
-        final Folder folder = (Folder) session.getObject(session.createObjectId(folderId));
+        final Folder folder = (Folder) getObject(session, folderId, OperationContextProfile.MINIMAL_METADATA);
+        final ParentFolder parent = new ParentFolder(folder.getId(), folder.getPath());
         final List<Document> documents = new ArrayList<Document>();
-        for (final CmisObject children : folder.getChildren()) {
+        for (final CmisObject children : folder.getChildren(operationContexts.get(OperationContextProfile.CHILDREN))) {
             if (children instanceof org.apache.chemistry.opencmis.client.api.Document) {
-                documents.add(convertDocument((org.apache.chemistry.opencmis.client.api.Document) children));
+                documents.add(convertDocument((org.apache.chemistry.opencmis.client.api.Document) children, parent));
             }
         }
         return documents;
@@ -399,11 +677,12 @@ public class CMISDocumentManager implements DocumentationManager {
 
     private List<org.ow2.bonita.services.Folder> getChildrenFolder(Session session, final String folderId) {
         try {
-            final Folder folder = (Folder) session.getObject(session.createObjectId(folderId));
+            final Folder folder = (Folder) getObject(session, folderId, OperationContextProfile.MINIMAL_METADATA);
             final List<org.ow2.bonita.services.Folder> subFolders = new ArrayList<org.ow2.bonita.services.Folder>();
-            for (final CmisObject children : folder.getChildren()) {
+            final OperationContext context = operationContexts.get(OperationContextProfile.CHILDREN);
+            for (final CmisObject children : folder.getChildren(context)) {
                 if (children instanceof Folder) {
-                    subFolders.add(convertFolder((Folder) children));
+                    subFolders.add(convertFolder((Folder) children, folderId));
                 }
             }
             return subFolders;
@@ -424,41 +703,142 @@ public class CMISDocumentManager implements DocumentationManager {
     }
 
     public org.ow2.bonita.services.Folder getRootFolder(Session session3) {
-        final Folder folder = (Folder) session3.getObject(session3.createObjectId(rootFolderId));
+        final Folder folder = (Folder) getObject(session3, rootFolderId, OperationContextProfile.MINIMAL_METADATA);
         return convertFolder(folder);
     }
 
     public void deleteFolder(final org.ow2.bonita.services.Folder folder) {
-        final Session session2 = getSession();
-        String id = folder.getId();
-        try {
-            session2.getObject(session2.createObjectId(id)).delete(true);
-        } catch (Throwable e) {
+        final DeletionReport report = deleteFolder(folder, null);
+        if (report.hasFailures()) {
+            final Exception e = report.getFailures().values().iterator().next();
             LOGGER.error("can't delete folder " + folder.getName() + " with id " + folder.getId(), e);
             throw new RuntimeException("can't delete folder " + folder.getName() + " with id " + folder.getId() + "\n"
                     + e.getMessage());
         }
-        Entry<ProcessDefinitionUUID, String> entryToDelete = null;
-        for (Entry<ProcessDefinitionUUID, String> entry : processDefinitionMap.entrySet()) {
+    }
+
+    /**
+     * The children of the folder are deleted in parallel, then the folder itself
+     */
+    public DeletionReport deleteFolder(final org.ow2.bonita.services.Folder folder, final DeletionListener listener) {
+        final Session session2 = getSession();
+        final String id = folder.getId();
+        final Folder cmisFolder;
+        try {
+            cmisFolder = (Folder) getObject(session2, id, OperationContextProfile.MINIMAL_METADATA);
+        } catch (final CmisBaseException e) {
+            invalidate(id);
+            final DeletionReport report = new DeletionReport(1);
+            report.failed(id, e);
+            return report;
+        }
+        final DeletionReport report = deleteChildren(cmisFolder, listener, 1, true);
+        if (!report.hasFailures()) {
+            // its children are already dropped from the caches
+            deleteObject(cmisFolder, report, listener, false);
+            invalidate(id);
+        }
+        if (report.hasFailures()) {
+            return report;
+        }
+        for (final Entry<ProcessDefinitionUUID, String> entry : processDefinitionMap.entrySet()) {
             if (id.equals(entry.getValue())) {
-                entryToDelete = entry;
-                break;
+                if (processDefinitionMap.remove(entry.getKey(), id)) {
+                    folderRemoved(entry.getKey());
+                }
+                return report;
             }
         }
-        if (entryToDelete != null) {
-            processDefinitionMap.remove(entryToDelete.getKey());
-            return;
-        }
-        Entry<ProcessInstanceUUID, String> entryToDelete2 = null;
-        for (Entry<ProcessInstanceUUID, String> entry : processInstanceMap.entrySet()) {
+        for (final Entry<ProcessInstanceUUID, String> entry : processInstanceMap.entrySet()) {
             if (id.equals(entry.getValue())) {
-                entryToDelete2 = entry;
-                break;
+                if (processInstanceMap.remove(entry.getKey(), id)) {
+                    folderRemoved(entry.getKey());
+                }
+                return report;
             }
         }
-        if (entryToDelete2 != null) {
-            processInstanceMap.remove(entryToDelete2.getKey());
-            return;
+        return report;
+    }
+
+    /**
+     * Delete the children of the folder on at most deletionConcurrency threads: sub-folders as whole trees, documents with
+     * all their versions. A failure does not stop the other deletions.
+     * 
+     * @param additionalObjects
+     *            number of objects the caller will delete after the children, counted in the total of the report
+     * @param invalidate
+     *            false if the caller drops all the cached objects and contents itself
+     */
+    private DeletionReport deleteChildren(final Folder folder, final DeletionListener listener, final int additionalObjects,
+            final boolean invalidate) {
+        final List<CmisObject> children = new ArrayList<CmisObject>();
+        for (final CmisObject child : folder.getChildren(operationContexts.get(OperationContextProfile.MINIMAL_METADATA))) {
+            children.add(child);
+        }
+        final DeletionReport report = new DeletionReport(children.size() + additionalObjects);
+        final List<Callable<Void>> deletions = new ArrayList<Callable<Void>>(children.size());
+        for (final CmisObject child : children) {
+            deletions.add(new Callable<Void>() {
+
+                public Void call() {
+                    deleteObject(child, report, listener, invalidate);
+                    return null;
+                }
+            });
+        }
+        runAll(deletions, deletionConcurrency);
+        return report;
+    }
+
+    /**
+     * Delete a document with all its versions or a folder tree, any error is recorded in the report
+     * 
+     * @param invalidate
+     *            true to drop the object and, for a folder, the objects of its tree from the caches
+     */
+    private void deleteObject(final CmisObject object, final DeletionReport report, final DeletionListener listener,
+            final boolean invalidate) {
+        final String id = object.getId();
+        boolean deleted = false;
+        int processed;
+        List<String> treeIds = Collections.emptyList();
+        try {
+            if (invalidate && object instanceof Folder && (objectCache != null || contentCache != null)) {
+                // the ids of the tree are unknown once it is deleted
+                treeIds = new ArrayList<String>();
+                addTreeIds((Folder) object, treeIds);
+            }
+            if (object instanceof Folder) {
+                final List<String> notDeleted = ((Folder) object).deleteTree(true, null, true);
+                if (notDeleted != null && !notDeleted.isEmpty()) {
+                    throw new CmisRuntimeException("can't delete the objects " + notDeleted + " of the folder " + id);
+                }
+            } else {
+                object.delete(true);
+            }
+            deleted = true;
+            processed = report.deleted(id);
+        } catch (final RuntimeException e) {
+            processed = report.failed(id, e);
+        } finally {
+            if (invalidate) {
+                invalidate(id);
+                for (final String treeId : treeIds) {
+                    invalidate(treeId);
+                }
+            }
+        }
+        if (listener != null) {
+            listener.objectProcessed(id, deleted, processed, report.getTotal());
+        }
+    }
+
+    private void addTreeIds(final Folder folder, final List<String> ids) {
+        for (final CmisObject child : folder.getChildren(operationContexts.get(OperationContextProfile.MINIMAL_METADATA))) {
+            ids.add(child.getId());
+            if (child instanceof Folder) {
+                addTreeIds((Folder) child, ids);
+            }
         }
     }
 
@@ -472,20 +852,33 @@ public class CMISDocumentManager implements DocumentationManager {
             session.getBinding().getObjectService().deleteObject(repositoryId, documentId, allVersions, null);
         } catch (final CmisObjectNotFoundException e) {
             throw new DocumentNotFoundException(documentId);
+        } finally {
+            invalidate(documentId);
         }
     }
 
-    private static byte[] toByteArray(InputStream input) throws IOException {
-        ByteArrayOutputStream output = null;
-        try {
-            output = new ByteArrayOutputStream();
-            byte[] buffer = new byte[4096];
-            long count = 0;
+    private static byte[] toByteArray(InputStream input, long length) throws IOException {
+        if (length > 0 && length <= Integer.MAX_VALUE) {
+            // the size is known: read directly in the final array
+            final byte[] content = new byte[(int) length];
+            int offset = 0;
             int n = 0;
-            while (-1 != (n = input.read(buffer))) {
-                output.write(buffer, 0, n);
-                count += n;
+            while (offset < content.length && -1 != (n = input.read(content, offset, content.length - offset))) {
+                offset += n;
             }
+            if (offset == content.length && input.read() == -1) {
+                return content;
+            }
+            // the announced length was wrong
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(offset + COPY_BUFFER_SIZE);
+            output.write(content, 0, offset);
+            copy(input, output);
+            return output.toByteArray();
+        }
+        ByteArrayOutputStream output = null;
+        try {
+            output = new ByteArrayOutputStream(COPY_BUFFER_SIZE);
+            copy(input, output);
             return output.toByteArray();
         } finally {
             if (output != null) {
@@ -494,96 +887,443 @@ public class CMISDocumentManager implements DocumentationManager {
         }
     }
 
+    private static long copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long count = 0;
+        int n = 0;
+        while (-1 != (n = input.read(buffer))) {
+            output.write(buffer, 0, n);
+            count += n;
+        }
+        return count;
+    }
+
     public byte[] getContent(final Document document) throws DocumentNotFoundException {
+        final InputStream stream = openContent(getContentDocument(document));
+        if (stream == null) {
+            return null;
+        }
+        try {
+            final byte[] content = toByteArray(stream, document.getContentSize());
+            CallStatistics.downloaded(content.length);
+            return content;
+        } catch (final IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                stream.close();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    public InputStream getContentStream(final Document document) throws DocumentNotFoundException {
+        return openContent(getContentDocument(document));
+    }
+
+    private org.apache.chemistry.opencmis.client.api.Document getContentDocument(final Document document)
+            throws DocumentNotFoundException {
         final Session session2 = getSession();
-        final org.apache.chemistry.opencmis.client.api.Document doc;
         try {
-            doc = (org.apache.chemistry.opencmis.client.api.Document) session2
-                    .getObject(session2.createObjectId(document.getId()));
+            return (org.apache.chemistry.opencmis.client.api.Document) getObject(session2, document.getId(),
+                    OperationContextProfile.MINIMAL_METADATA);
         } catch (CmisBaseException e) {
             throw new DocumentNotFoundException(document.getId());
         }
+    }
+
+    /**
+     * @return the uncompressed content, null if there is none
+     */
+    private InputStream openContent(final org.apache.chemistry.opencmis.client.api.Document doc) {
+        return ContentCodec.decode(doc.getContentStreamMimeType(), openStoredContent(doc));
+    }
+
+    /**
+     * @return the content as stored, from the content cache if it is there, otherwise from the repository; null if there
+     *         is none
+     */
+    private InputStream openStoredContent(final org.apache.chemistry.opencmis.client.api.Document doc) {
         if (doc.getContentStreamLength() == 0) {
             return null;// no contents
-        } else {
-            final ContentStream contentStream = doc.getContentStream();
-            if (contentStream != null) {
-                final InputStream stream = contentStream.getStream();
-                byte[] byteArray;
-                try {
-                    byteArray = toByteArray(stream);
-                    return byteArray;
-                } catch (final IOException e) {
-                    e.printStackTrace();
-                } finally {
-                    try {
-                        stream.close();
-                    } catch (final IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+        }
+        String key = null;
+        if (contentCache != null) {
+            key = ContentCache.key(doc);
+            final InputStream cached = contentCache.open(key);
+            if (cached != null) {
+                return cached;
             }
+        }
+        final ContentStream contentStream = doc.getContentStream();
+        if (contentStream == null) {
             return null;
         }
+        if (contentCache != null) {
+            return contentCache.store(key, doc.getId(), contentStream.getStream(), doc.getContentStreamLength());
+        }
+        return contentStream.getStream();
     }
 
-    public String getDocumentPath(final String documentId) throws DocumentNotFoundException {
-        final Session session2 = getSession();
+    public byte[] getContent(final Document document, final long offset, final long length) throws DocumentNotFoundException {
+        checkRange(offset, length);
+        final org.apache.chemistry.opencmis.client.api.Document doc = getContentDocument(document);
+        final InputStream stream = openRange(doc, offset, length);
+        if (stream == null) {
+            return null;
+        }
         try {
-            final org.apache.chemistry.opencmis.client.api.Document object = (org.apache.chemistry.opencmis.client.api.Document) session2
-                    .getObject(session2.createObjectId(documentId));
-            return object.getParents().get(0).getPath() + "/" + object.getName();
-        } catch (CmisObjectNotFoundException e) {
-            throw new DocumentNotFoundException(documentId);
+            final byte[] content = toByteArray(stream, rangeLength(doc, offset, length));
+            CallStatistics.downloaded(content.length);
+            return content;
+        } catch (final IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                stream.close();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
         }
+        return null;
     }
 
-    public Document createVersion(final String documentId, final boolean isMajorVersion) throws DocumentationCreationException {
-        final Session session2 = getSession();
-        return createVersion(session2, documentId, isMajorVersion, null, "application/octet-stream", null);
+    public InputStream getContentStream(final Document document, final long offset, final long length)
+            throws DocumentNotFoundException {
+        checkRange(offset, length);
+        return openRange(getContentDocument(document), offset, length);
     }
 
-    public Document createVersion(final String documentId, final boolean isMajorVersion, final String fileName,
-            final String mimeType, final byte[] content) throws DocumentationCreationException {
-        final Session session2 = getSession();
-        return createVersion(session2, documentId, isMajorVersion, fileName, mimeType, content);
+    private static void checkRange(final long offset, final long length) {
+        if (offset < 0 || length < -1) {
+            throw new IllegalArgumentException("Invalid range: offset " + offset + ", length " + length);
+        }
     }
 
     /**
-     * @param session
-     * @param documentId
-     * @param isMajorVersion
-     * @param fileName
-     * @param mimeType
-     * @param content
-     * @return
-     * @throws DocumentationCreationException
+     * @return the number of bytes of the range, from the length of the content given by the repository
      */
-    private Document createVersion(final Session session, final String documentId, final boolean isMajorVersion,
-            final String fileName, final String mimeType, final byte[] content) throws DocumentationCreationException {
-        org.apache.chemistry.opencmis.client.api.Document cmisDoc;
-        try {
-            cmisDoc = (org.apache.chemistry.opencmis.client.api.Document) session.getObject(session.createObjectId(documentId));
-        } catch (CmisObjectNotFoundException e) {
-            throw new DocumentationCreationException("can't find the document", new DocumentNotFoundException(documentId));
-        }
-        if (!cmisDoc.isLatestVersion()) {
-            cmisDoc = cmisDoc.getObjectOfLatestVersion(true);
-        }
-        final ObjectId pwcid;
-        try {
+    private static long rangeLength(final org.apache.chemistry.opencmis.client.api.Document doc, final long offset,
+            final long length) {
+        final long remaining = ContentCodec.originalLength(doc.getContentStreamMimeType(), doc.getContentStreamLength())
+                - offset;
+        return length >= 0 ? Math.min(length, remaining) : remaining;
+    }
+
+    /**
+     * The range is asked to the repository, only the content cache is read when it holds the whole content. If the
+     * repository answers with the whole content the range is cut on the client.
+     * 
+     * @return the bytes of the range, null if the document has no content
+     */
+    private InputStream openRange(final org.apache.chemistry.opencmis.client.api.Document doc, final long offset,
+            final long length) throws DocumentNotFoundException {
+        if (doc.getContentStreamLength() == 0) {
+            return null;// no contents
+        }
+        final long rangeLength = rangeLength(doc, offset, length);
+        if (rangeLength < 0) {
+            throw new IllegalArgumentException("Offset " + offset + " is after the end of the content of " + doc.getId());
+        }
+        if (ContentCodec.isEncoded(doc.getContentStreamMimeType())) {
+            // a range of the compressed bytes means nothing: the content is uncompressed and the range cut from it
+            final InputStream content = openContent(doc);
+            return content != null ? new RangeInputStream(content, offset, length) : null;
+        }
+        if (rangeLength == 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        if (contentCache != null) {
+            final InputStream cached = contentCache.open(ContentCache.key(doc), offset);
+            if (cached != null) {
+                return length >= 0 ? new RangeInputStream(cached, 0, length) : cached;
+            }
+        }
+        final ObjectService objectService = getSession().getBinding().getObjectService();
+        final ContentStream contentStream;
+        try {
+            contentStream = objectService.getContentStream(repositoryId, doc.getId(), null, BigInteger.valueOf(offset),
+                    length >= 0 ? BigInteger.valueOf(length) : null, null);
+        } catch (final CmisObjectNotFoundException e) {
+            throw new DocumentNotFoundException(doc.getId());
+        } catch (final CmisBaseException e) {
+            throw new DocumentNotFoundException(doc.getId(), e);
+        }
+        if (contentStream == null || contentStream.getStream() == null) {
+            return null;
+        }
+        if (offset > 0) {
+            final BigInteger returnedLength = contentStream.getBigLength();
+            final boolean offsetApplied;
+            try {
+                offsetApplied = returnedLength != null ? returnedLength.longValue() < doc.getContentStreamLength()
+                        : isOffsetApplied(objectService, doc);
+            } catch (final DocumentNotFoundException e) {
+                closeQuietly(contentStream.getStream());
+                throw e;
+            }
+            if (!offsetApplied) {
+                // the range was ignored
+                return new RangeInputStream(contentStream.getStream(), offset, length);
+            }
+        }
+        if (length >= 0) {
+            return new RangeInputStream(contentStream.getStream(), 0, length);
+        }
+        return contentStream.getStream();
+    }
+
+    /**
+     * Tell whether the repository applies the offset of a range when it does not give the length of its answer. Asked
+     * once with the last byte of the document: reading more than one byte means the offset was ignored.
+     */
+    private boolean isOffsetApplied(final ObjectService objectService,
+            final org.apache.chemistry.opencmis.client.api.Document doc) throws DocumentNotFoundException {
+        Boolean applied = offsetApplied;
+        if (applied == null) {
+            try {
+                final ContentStream probe = objectService.getContentStream(repositoryId, doc.getId(), null, BigInteger
+                        .valueOf(doc.getContentStreamLength() - 1), BigInteger.ONE, null);
+                final InputStream stream = probe.getStream();
+                int read = 0;
+                try {
+                    while (read < 2 && stream.read() != -1) {
+                        read++;
+                    }
+                } finally {
+                    stream.close();
+                }
+                applied = read <= 1;
+            } catch (final CmisBaseException e) {
+                throw new DocumentNotFoundException(doc.getId(), e);
+            } catch (final IOException e) {
+                throw new DocumentNotFoundException(doc.getId(), e);
+            }
+            offsetApplied = applied;
+        }
+        return applied;
+    }
+
+    private static void closeQuietly(final InputStream stream) {
+        try {
+            stream.close();
+        } catch (final IOException e) {
+            // nothing more to do
+        }
+    }
+
+    public long getContent(final Document document, final WritableByteChannel channel) throws DocumentNotFoundException,
+            IOException {
+        final org.apache.chemistry.opencmis.client.api.Document doc = getContentDocument(document);
+        if (contentCache != null && doc.getContentStreamLength() != 0
+                && !ContentCodec.isEncoded(doc.getContentStreamMimeType())) {
+            final long transferred = contentCache.transferTo(ContentCache.key(doc), channel);
+            if (transferred >= 0) {
+                CallStatistics.downloaded(transferred);
+                return transferred;
+            }
+        }
+        final InputStream stream = openContent(doc);
+        if (stream == null) {
+            return 0;
+        }
+        try {
+            final ReadableByteChannel source = Channels.newChannel(stream);
+            final ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            long count = 0;
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    count += channel.write(buffer);
+                }
+                buffer.clear();
+            }
+            CallStatistics.downloaded(count);
+            return count;
+        } finally {
+            stream.close();
+        }
+    }
+
+    public String getDocumentPath(final String documentId) throws DocumentNotFoundException {
+        final Session session2 = getSession();
+        try {
+            final org.apache.chemistry.opencmis.client.api.Document object = (org.apache.chemistry.opencmis.client.api.Document) getObject(
+                    session2, documentId, OperationContextProfile.MINIMAL_METADATA);
+            return getParent(session2, object).path + "/" + object.getName();
+        } catch (CmisObjectNotFoundException e) {
+            throw new DocumentNotFoundException(documentId);
+        }
+    }
+
+    public Document createVersion(final String documentId, final boolean isMajorVersion) throws DocumentationCreationException {
+        final Session session2 = getSession();
+        return createVersion(session2, documentId, isMajorVersion, null, "application/octet-stream", null);
+    }
+
+    public Document createVersion(final String documentId, final boolean isMajorVersion, final String fileName,
+            final String mimeType, final byte[] content) throws DocumentationCreationException {
+        final Session session2 = getSession();
+        return createVersion(session2, documentId, isMajorVersion, fileName, mimeType, content);
+    }
+
+    public Document createVersion(final String documentId, final boolean isMajorVersion, final String fileName,
+            final String mimeType, final InputStream content, final long contentLength) throws DocumentationCreationException {
+        final Session session2 = getSession();
+        return createVersion(session2, documentId, isMajorVersion, fileName, mimeType, content, contentLength);
+    }
+
+    public ChunkedUpload startUpload(final String name, final ProcessDefinitionUUID definitionUUID,
+            final ProcessInstanceUUID instanceUUID, final String fileName, final String contentMimeType)
+            throws DocumentationCreationException {
+        if (name == null || definitionUUID == null) {
+            throw new DocumentationCreationException("The name and the process definition of the document are required");
+        }
+        checkMimeType(contentMimeType);
+        abortExpiredUploads();
+        try {
+            return register(ChunkedUpload.forDocument(this, uploadDirectory, name, definitionUUID, instanceUUID, fileName,
+                    contentMimeType));
+        } catch (final IOException e) {
+            throw new DocumentationCreationException("Can't start the upload of " + name, e);
+        }
+    }
+
+    public ChunkedUpload startVersionUpload(final String documentId, final boolean isMajorVersion, final String fileName,
+            final String mimeType) throws DocumentationCreationException {
+        if (documentId == null) {
+            throw new DocumentationCreationException("The id of the document is required");
+        }
+        checkMimeType(mimeType);
+        abortExpiredUploads();
+        try {
+            return register(ChunkedUpload.forVersion(this, uploadDirectory, documentId, isMajorVersion, fileName, mimeType));
+        } catch (final IOException e) {
+            throw new DocumentationCreationException("Can't start the upload of a version of " + documentId, e);
+        }
+    }
+
+    /**
+     * Uploads started before a restart are found in the upload directory, ids not made by {@link ChunkedUpload} are
+     * unknown
+     */
+    public ChunkedUpload getUpload(final String uploadId) {
+        if (!ChunkedUpload.isUploadId(uploadId)) {
+            return null;
+        }
+        abortExpiredUploads();
+        final ChunkedUpload upload = uploads.get(uploadId);
+        if (upload != null) {
+            return upload;
+        }
+        try {
+            final ChunkedUpload loaded = ChunkedUpload.load(this, uploadDirectory, uploadId);
+            return loaded != null ? register(loaded) : null;
+        } catch (final IOException e) {
+            LOGGER.warn("Can't read the upload " + uploadId, e);
+            return null;
+        }
+    }
+
+    private ChunkedUpload register(final ChunkedUpload upload) {
+        final ChunkedUpload previous = uploads.putIfAbsent(upload.getId(), upload);
+        return previous != null ? previous : upload;
+    }
+
+    void uploadEnded(final String uploadId) {
+        uploads.remove(uploadId);
+    }
+
+    /**
+     * Abort the uploads that received no chunk for longer than the expiry, looked for at most once per hour
+     */
+    private void abortExpiredUploads() {
+        if (uploadExpiry <= 0) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (now < nextUploadSweep) {
+            return;
+        }
+        nextUploadSweep = now + Math.min(uploadExpiry, UPLOAD_SWEEP_INTERVAL);
+        for (final String uploadId : ChunkedUpload.findExpired(uploadDirectory, now - uploadExpiry)) {
+            final ChunkedUpload upload = uploads.get(uploadId);
+            if (upload != null) {
+                upload.abort();
+            } else {
+                ChunkedUpload.delete(uploadDirectory, uploadId);
+            }
+            LOGGER.info("Upload " + uploadId + " expired, its chunks are deleted");
+        }
+    }
+
+    private static void checkMimeType(final String contentMimeType) throws DocumentationCreationException {
+        if (contentMimeType != null) {
+            try {
+                new MimeType(contentMimeType);
+            } catch (final MimeTypeParseException e1) {
+                throw new DocumentationCreationException("Mime type not valid", e1);
+            }
+        }
+    }
+
+    public Document createVersion(final String documentId, final boolean isMajorVersion, final String fileName,
+            final String mimeType, final ReadableByteChannel content, final long contentLength)
+            throws DocumentationCreationException {
+        return createVersion(documentId, isMajorVersion, fileName, mimeType, content != null ? Channels.newInputStream(content)
+                : null, contentLength);
+    }
+
+    private Document createVersion(final Session session, final String documentId, final boolean isMajorVersion,
+            final String fileName, final String mimeType, final byte[] content) throws DocumentationCreationException {
+        if (content == null) {
+            return createVersion(session, documentId, isMajorVersion, fileName, mimeType, null, 0);
+        }
+        return createVersion(session, documentId, isMajorVersion, fileName, mimeType, new ByteArrayInputStream(content),
+                content.length);
+    }
+
+    /**
+     * @param session
+     * @param documentId
+     * @param isMajorVersion
+     * @param fileName
+     * @param mimeType
+     * @param content
+     *            the content of the new version, it is not closed
+     * @param contentLength
+     *            the length of the content or -1 if unknown, if 0 the new version has an empty content
+     * @return
+     * @throws DocumentationCreationException
+     */
+    private Document createVersion(final Session session, final String documentId, final boolean isMajorVersion,
+            final String fileName, final String mimeType, final InputStream content, final long contentLength)
+            throws DocumentationCreationException {
+        org.apache.chemistry.opencmis.client.api.Document cmisDoc;
+        try {
+            cmisDoc = (org.apache.chemistry.opencmis.client.api.Document) getObject(session, documentId,
+                    OperationContextProfile.VERSIONING);
+        } catch (CmisObjectNotFoundException e) {
+            throw new DocumentationCreationException("can't find the document", new DocumentNotFoundException(documentId));
+        }
+        if (!cmisDoc.isLatestVersion()) {
+            cmisDoc = cmisDoc.getObjectOfLatestVersion(true, operationContexts.get(OperationContextProfile.VERSIONING));
+        }
+        final ObjectId pwcid;
+        try {
             pwcid = cmisDoc.checkOut();
         } catch (CmisRuntimeException e) {
             LOGGER.error("Unable to create document", e);
             throw new DocumentationCreationException("Unable to create document\n" + e.getMessage());
         }
-        ObjectId newVersion = null;
-        ByteArrayInputStream insputStream = null;
+        final Holder<String> newVersion = new Holder<String>(pwcid.getId());
+        InputStream insputStream = null;
+        final ContentCodec.Encoding encoding = encode(content, mimeType, contentLength);
         final ContentStream contentStream;
         try {
-            final org.apache.chemistry.opencmis.client.api.Document pwc = (org.apache.chemistry.opencmis.client.api.Document) session
-                    .getObject(pwcid);
-            if (content != null && content.length > 0) {
+            if (content != null && contentLength != 0) {
                 if (mimeType != null) {
                     try {
                         new MimeType(mimeType);
@@ -592,9 +1332,14 @@ public class CMISDocumentManager implements DocumentationManager {
                         throw new DocumentationCreationException("Mime type not valid\n" + e1.getMessage());
                     }
                 }
-                insputStream = new ByteArrayInputStream(content);
-                contentStream = session.getBinding().getObjectFactory()
-                        .createContentStream(fileName, BigInteger.valueOf(content.length), mimeType, insputStream);
+                if (encoding != null) {
+                    contentStream = session.getBinding().getObjectFactory().createContentStream(fileName, null,
+                            encoding.getMimeType(), CallStatistics.countUpload(encoding.getStream()));
+                } else {
+                    contentStream = session.getBinding().getObjectFactory()
+                            .createContentStream(fileName, contentLength > 0 ? BigInteger.valueOf(contentLength) : null,
+                                    mimeType, CallStatistics.countUpload(content));
+                }
             } else {
                 insputStream = new ByteArrayInputStream(new byte[0]);
                 contentStream = session.getBinding().getObjectFactory()
@@ -603,9 +1348,12 @@ public class CMISDocumentManager implements DocumentationManager {
             final Map<String, Object> newDocProps = new HashMap<String, Object>();
             newDocProps.put(PropertyIds.NAME, cmisDoc.getName());
             newDocProps.put(PropertyIds.CONTENT_STREAM_FILE_NAME, fileName);
-            newDocProps.put(PropertyIds.CONTENT_STREAM_MIME_TYPE, mimeType);
+            newDocProps.put(PropertyIds.CONTENT_STREAM_MIME_TYPE, encoding != null ? encoding.getMimeType() : mimeType);
             newDocProps.put(PropertyIds.IS_MAJOR_VERSION, isMajorVersion);
-            newVersion = pwc.checkIn(isMajorVersion, newDocProps, contentStream, "");
+            // checked in by id: the private working copy is never fetched
+            session.getBinding().getVersioningService().checkIn(repositoryId, newVersion, isMajorVersion,
+                    session.getObjectFactory().convertProperties(newDocProps, cmisDoc.getType(), CHECK_IN_UPDATABILITY),
+                    contentStream, "", null, null, null, null);
         } catch (Throwable t) {
             session.getBinding().getVersioningService().cancelCheckOut(repositoryId, pwcid.getId(), null);
             LOGGER.error("Unable to create document", t);
@@ -618,9 +1366,18 @@ public class CMISDocumentManager implements DocumentationManager {
                     e.printStackTrace();
                 }
             }
+            if (encoding != null) {
+                encoding.end();
+            }
         }
-        session.clear();// must clear it because xcmis change ids of documents
-        return convertDocument((org.apache.chemistry.opencmis.client.api.Document) session.getObject(newVersion));
+        // xcmis changes the ids of the documents of the series: only this series is dropped from the object cache, the
+        // contexts of the manager don't use the cache of the session
+        invalidate(documentId);
+        invalidateVersionSeries(cmisDoc.getVersionSeriesId());
+        final String newVersionId = newVersion.getValue();
+        final org.apache.chemistry.opencmis.client.api.Document version = (org.apache.chemistry.opencmis.client.api.Document) getObject(
+                session, newVersionId, OperationContextProfile.MINIMAL_METADATA);
+        return convertDocument(session, version);
     }
 
     public List<org.ow2.bonita.services.Folder> getFolders(final String folderName) {
@@ -629,15 +1386,15 @@ public class CMISDocumentManager implements DocumentationManager {
     }
 
     private List<org.ow2.bonita.services.Folder> getFolders(final Session session, final String folderName) {
-        final String statement = "SELECT * FROM cmis:folder WHERE cmis:name = '" + folderName + "'";
+        final String statement = "SELECT " + FOLDER_COLUMNS + " FROM cmis:folder WHERE cmis:name = '" + folderName + "'";
         final ItemIterable<QueryResult> query = session.query(statement, true);
         final ArrayList<org.ow2.bonita.services.Folder> folders = new ArrayList<org.ow2.bonita.services.Folder>();
         try {
             for (final QueryResult queryResult : query) {
-                final PropertyData<Object> propertyById = queryResult.getPropertyById("cmis:objectId");
-                final String objectId = (String) propertyById.getValues().get(0);
-                final Folder cmisFolder = (Folder) session.getObject(session.createObjectId(objectId));
-                folders.add(convertFolder(cmisFolder));
+                final FolderImpl folder = new FolderImpl((String) queryResult.getPropertyValueById(PropertyIds.NAME),
+                        (String) queryResult.getPropertyValueById(PropertyIds.PARENT_ID));
+                folder.setId((String) queryResult.getPropertyValueById(PropertyIds.OBJECT_ID));
+                folders.add(folder);
             }
         } catch (final CmisObjectNotFoundException e) {
             LOGGER.debug("can't find object with query: " + statement, e);
@@ -650,14 +1407,15 @@ public class CMISDocumentManager implements DocumentationManager {
         final List<Document> versions = new ArrayList<Document>();
         org.apache.chemistry.opencmis.client.api.Document document;
         try {
-            document = (org.apache.chemistry.opencmis.client.api.Document) session2
-                    .getObject(session2.createObjectId(documentId));
+            document = (org.apache.chemistry.opencmis.client.api.Document) getObject(session2, documentId,
+                    OperationContextProfile.VERSIONING);
         } catch (CmisObjectNotFoundException e) {
             throw new DocumentNotFoundException(documentId);
         }
-        final List<org.apache.chemistry.opencmis.client.api.Document> allVersions2 = document.getAllVersions();
+        final List<org.apache.chemistry.opencmis.client.api.Document> allVersions2 = document.getAllVersions(operationContexts
+                .get(OperationContextProfile.VERSIONING));
         for (final org.apache.chemistry.opencmis.client.api.Document oldDoc : allVersions2) {
-            versions.add(convertDocument(oldDoc));
+            versions.add(convertDocument(session2, oldDoc));
         }
         return versions;
     }
@@ -665,253 +1423,731 @@ public class CMISDocumentManager implements DocumentationManager {
     public Document createDocument(final String name, final ProcessDefinitionUUID definitionUUID,
             final ProcessInstanceUUID instanceUUID) throws DocumentationCreationException, DocumentAlreadyExistsException {
         Session session = getSession();
-        final String folderId = createPath(session, definitionUUID, instanceUUID);
-        return createDocument(session, name, folderId);
+        try {
+            return createDocument(session, name, createPath(session, definitionUUID, instanceUUID));
+        } catch (final DocumentationCreationException e) {
+            if (!evictDeletedFolders(session, definitionUUID, instanceUUID)) {
+                throw e;
+            }
+            return createDocument(session, name, createPath(session, definitionUUID, instanceUUID));
+        }
     }
 
     public Document createDocument(final String name, final ProcessDefinitionUUID definitionUUID,
             final ProcessInstanceUUID instanceUUID, final String fileName, final String contentMimeType, final byte[] fileContent)
             throws DocumentationCreationException, DocumentAlreadyExistsException {
-        Session session = getSession();
-        final String subFolder = createPath(session, definitionUUID, instanceUUID);
-        return createDocument(session, name, subFolder, fileName, contentMimeType, fileContent);
+        return createDocument(getSession(), definitionUUID, instanceUUID, new DocumentCreation(name, fileName,
+                contentMimeType, fileContent));
     }
 
-    private String createPath(Session session, final ProcessDefinitionUUID definitionUUID, final ProcessInstanceUUID instanceUUID)
+    public Document createDocument(final String name, final ProcessDefinitionUUID definitionUUID,
+            final ProcessInstanceUUID instanceUUID, final String fileName, final String contentMimeType,
+            final InputStream content, final long contentLength) throws DocumentationCreationException,
+            DocumentAlreadyExistsException {
+        return createDocument(getSession(), definitionUUID, instanceUUID, new DocumentCreation(name, fileName,
+                contentMimeType, content, contentLength));
+    }
+
+    /**
+     * The folders of the process are served from the object cache: if the creation fails because one of them was
+     * deleted by someone else, they are resolved again and the creation is retried once when the content can be read
+     * again.
+     */
+    private Document createDocument(final Session session, final ProcessDefinitionUUID definitionUUID,
+            final ProcessInstanceUUID instanceUUID, final DocumentCreation document) throws DocumentationCreationException {
+        checkMimeType(document.getContentMimeType());
+        final boolean replayable = markContent(document);
+        try {
+            return createDocument(session, createPath(session, definitionUUID, instanceUUID), document);
+        } catch (final DocumentationCreationException e) {
+            if (e instanceof DocumentAlreadyExistsException || !evictDeletedFolders(session, definitionUUID, instanceUUID)
+                    || !replayable || !resetContent(document)) {
+                throw e;
+            }
+            return createDocument(session, createPath(session, definitionUUID, instanceUUID), document);
+        }
+    }
+
+    public Document createDocument(final String name, final ProcessDefinitionUUID definitionUUID,
+            final ProcessInstanceUUID instanceUUID, final String fileName, final String contentMimeType,
+            final ReadableByteChannel content, final long contentLength) throws DocumentationCreationException,
+            DocumentAlreadyExistsException {
+        return createDocument(name, definitionUUID, instanceUUID, fileName, contentMimeType,
+                content != null ? Channels.newInputStream(content) : null, contentLength);
+    }
+
+    public DocumentCreationResult createDocuments(final ProcessDefinitionUUID definitionUUID,
+            final ProcessInstanceUUID instanceUUID, final List<DocumentCreation> documents)
+            throws DocumentationCreationException {
+        final Session session = getSession();
+        final Set<String> names = new HashSet<String>();
+        Folder processFolder = (Folder) getObject(session, createPath(session, definitionUUID, instanceUUID),
+                OperationContextProfile.MINIMAL_METADATA);
+        try {
+            addChildNames(processFolder, names);
+        } catch (final CmisObjectNotFoundException e) {
+            if (!evictDeletedFolders(session, definitionUUID, instanceUUID)) {
+                throw e;
+            }
+            processFolder = (Folder) getObject(session, createPath(session, definitionUUID, instanceUUID),
+                    OperationContextProfile.MINIMAL_METADATA);
+            addChildNames(processFolder, names);
+        }
+        final Folder folder = processFolder;
+        final ParentFolder parent = new ParentFolder(folder.getId(), folder.getPath());
+        final Document[] created = new Document[documents.size()];
+        final Map<Integer, DocumentationCreationException> failures = new ConcurrentHashMap<Integer, DocumentationCreationException>();
+        final List<Callable<Void>> uploads = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < documents.size(); i++) {
+            final int index = i;
+            final DocumentCreation document = documents.get(i);
+            // also rejects a name present twice in the list
+            if (!names.add(document.getName())) {
+                failures.put(index, new DocumentAlreadyExistsException(null, document.getName()));
+                continue;
+            }
+            uploads.add(new Callable<Void>() {
+
+                public Void call() {
+                    try {
+                        created[index] = createDocument(session, folder, parent, document);
+                    } catch (final DocumentationCreationException e) {
+                        failures.put(index, e);
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(uploads, bulkConcurrency);
+        for (int i = 0; i < created.length; i++) {
+            if (created[i] == null && !failures.containsKey(i)) {
+                failures.put(i, new DocumentationCreationException("Creation of " + documents.get(i).getName()
+                        + " was interrupted"));
+            }
+        }
+        return new DocumentCreationResult(Arrays.asList(created), new HashMap<Integer, DocumentationCreationException>(
+                failures));
+    }
+
+    private void addChildNames(final Folder folder, final Set<String> names) {
+        for (final CmisObject child : folder.getChildren(operationContexts.get(OperationContextProfile.MINIMAL_METADATA))) {
+            names.add(child.getName());
+        }
+    }
+
+    private Document createDocument(final Session session, final String folderId, final DocumentCreation document)
             throws DocumentationCreationException {
-        String mainFolderId = null;
-        Folder mainFolder = null;
-        if (processDefinitionMap.containsKey(definitionUUID)) {
-            mainFolderId = processDefinitionMap.get(definitionUUID);
+        final Folder folder = (Folder) getObject(session, folderId, OperationContextProfile.MINIMAL_METADATA);
+        return createDocument(session, folder, new ParentFolder(folder.getId(), folder.getPath()), document);
+    }
+
+    /**
+     * Mark the content of the document so that it can be sent again, only small contents supporting mark are kept
+     * 
+     * @return false if the content can't be sent again
+     */
+    private static boolean markContent(final DocumentCreation document) {
+        final InputStream content = document.getContent();
+        final long contentLength = document.getContentLength();
+        if (content == null || contentLength == 0) {
+            return true;
+        }
+        if (contentLength < 0 || contentLength > MAX_PREHASHED_CONTENT || !content.markSupported()) {
+            return false;
+        }
+        content.mark((int) contentLength);
+        return true;
+    }
+
+    private static boolean resetContent(final DocumentCreation document) {
+        if (document.getContent() == null || document.getContentLength() == 0) {
+            return true;
+        }
+        try {
+            document.getContent().reset();
+            return true;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Drop the folders of a process from the object cache after a creation in them failed
+     * 
+     * @return true if one of them was served from the cache but has been deleted from the repository
+     */
+    private boolean evictDeletedFolders(final Session session, final ProcessDefinitionUUID definitionUUID,
+            final ProcessInstanceUUID instanceUUID) {
+        final boolean definitionFolderDeleted = definitionUUID != null
+                && evictDeletedFolder(session, processDefinitionMap.get(definitionUUID));
+        final boolean instanceFolderDeleted = instanceUUID != null
+                && evictDeletedFolder(session, processInstanceMap.get(instanceUUID));
+        return definitionFolderDeleted || instanceFolderDeleted;
+    }
+
+    /**
+     * @return true if the folder was served from the object cache but has been deleted from the repository
+     */
+    private boolean evictDeletedFolder(final Session session, final String folderId) {
+        if (objectCache == null || folderId == null || objectCache.get(session, folderId) == null) {
+            return false;
+        }
+        invalidate(folderId);
+        try {
+            getObject(session, folderId, OperationContextProfile.MINIMAL_METADATA);
+            return false;
+        } catch (final CmisObjectNotFoundException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Create a document in a folder already fetched: the document is fetched once after its creation and converted with
+     * the known parent
+     */
+    private Document createDocument(final Session session, final Folder folder, final ParentFolder parent,
+            final DocumentCreation document) throws DocumentationCreationException {
+        final String name = document.getName();
+        final String fileName = document.getFileName();
+        final String contentMimeType = document.getContentMimeType();
+        checkMimeType(contentMimeType);
+        final Map<String, String> newDocProps = new HashMap<String, String>();
+        newDocProps.put(PropertyIds.OBJECT_TYPE_ID, "cmis:document");
+        newDocProps.put(PropertyIds.NAME, name);
+        newDocProps.put(PropertyIds.CONTENT_STREAM_FILE_NAME, fileName);
+        final long contentLength = document.getContentLength();
+        InputStream content = document.getContent();
+        String contentKey = null;
+        if (contentIndex != null && copyFromSourceSupported && content != null && contentLength != 0) {
+            if (contentLength > 0 && contentLength <= MAX_PREHASHED_CONTENT && content.markSupported()) {
+                try {
+                    contentKey = ContentIndex.key(contentMimeType, content, contentLength);
+                } catch (final IOException e) {
+                    throw new DocumentationCreationException("Can't read the content of the document " + name, e);
+                }
+                final Document existing = reuseContent(session, contentKey, folder, parent, newDocProps);
+                if (existing != null) {
+                    return existing;
+                }
+            } else {
+                content = new ContentIndex.HashingInputStream(contentMimeType, content, contentLength);
+            }
+        }
+        final ContentCodec.Encoding encoding = encode(content, contentMimeType, contentLength);
+        try {
+            ContentStream contentStream = null;
+            if (encoding != null) {
+                contentStream = new ContentStreamImpl(fileName, null, encoding.getMimeType(), CallStatistics
+                        .countUpload(encoding.getStream()));
+            } else if (content != null && contentLength != 0) {
+                contentStream = new ContentStreamImpl(fileName, contentLength > 0 ? BigInteger.valueOf(contentLength) : null,
+                        contentMimeType, CallStatistics.countUpload(content));
+            }
+            final ObjectId id = session.createDocument(newDocProps, folder, contentStream, null);
+            final org.apache.chemistry.opencmis.client.api.Document created = (org.apache.chemistry.opencmis.client.api.Document) getObject(
+                    session, id.getId(), OperationContextProfile.MINIMAL_METADATA);
+            if (contentKey == null && content instanceof ContentIndex.HashingInputStream) {
+                contentKey = ((ContentIndex.HashingInputStream) content).getKey();
+            }
+            if (contentKey != null) {
+                contentIndex.put(contentKey, created);
+            }
+            return convertDocument(created, parent);
+        } catch (final CmisBaseException e) {
+            throw new DocumentationCreationException("Document may alreadyExists: " + name + "\n" + e.getMessage());
+        } finally {
+            if (encoding != null) {
+                encoding.end();
+            }
+        }
+    }
+
+    /**
+     * @return the compressed content or null if the content is sent as is
+     */
+    private ContentCodec.Encoding encode(final InputStream content, final String mimeType, final long contentLength) {
+        if (contentCodec == null || content == null || !contentCodec.compresses(mimeType, contentLength)) {
+            return null;
+        }
+        return contentCodec.encode(content, mimeType, contentLength);
+    }
+
+    /**
+     * Create the document as a server side copy of an indexed document with the same content instead of uploading it
+     * again. The copy can't change the file name of the content, which is read only: only a source with the same file
+     * name is copied. Deduplication never makes a creation fail, except when the name is already used in the folder.
+     * 
+     * @return the document or null if the content must be uploaded
+     */
+    private Document reuseContent(final Session session, final String contentKey, final Folder folder,
+            final ParentFolder parent, final Map<String, String> properties) throws DocumentationCreationException {
+        final ContentIndex.Entry entry = contentIndex.get(contentKey);
+        if (entry == null) {
+            return null;
+        }
+        final org.apache.chemistry.opencmis.client.api.Document source;
+        try {
+            source = (org.apache.chemistry.opencmis.client.api.Document) getObject(session, entry.getDocumentId(),
+                    OperationContextProfile.MINIMAL_METADATA);
+        } catch (final CmisObjectNotFoundException e) {
+            contentIndex.remove(contentKey);
+            return null;
+        } catch (final CmisBaseException e) {
+            return null;
+        }
+        if (!entry.matches(source)) {
+            contentIndex.remove(contentKey);
+            return null;
+        }
+        if (!equal(properties.get(PropertyIds.CONTENT_STREAM_FILE_NAME), source.getContentStreamFileName())) {
+            return null;
+        }
+        final String name = properties.get(PropertyIds.NAME);
+        final Map<String, String> copyProperties = new HashMap<String, String>(properties);
+        copyProperties.remove(PropertyIds.OBJECT_TYPE_ID);
+        final ObjectId id;
+        try {
+            id = session.createDocumentFromSource(source, copyProperties, folder, null);
+        } catch (final CmisNotSupportedException e) {
+            if (copyFromSourceSupported) {
+                LOGGER.warn("The repository can't copy documents, content deduplication is disabled");
+                copyFromSourceSupported = false;
+                contentIndex.clear();
+            }
+            return null;
+        } catch (final CmisBaseException e) {
+            if (getChildByName(session, folder, name) != null) {
+                throw new DocumentAlreadyExistsException(null, name);
+            }
+            LOGGER.warn("Can't copy the document " + source.getId() + ", its content will be uploaded again", e);
+            return null;
+        }
+        return convertDocument((org.apache.chemistry.opencmis.client.api.Document) getObject(session, id.getId(),
+                OperationContextProfile.MINIMAL_METADATA), parent);
+    }
+
+    private static boolean equal(final String a, final String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Run the tasks with at most maxThreads of them at the same time and wait for all of them. The calling thread takes
+     * part in the work on the shared executor, so that nested calls or a busy executor never block it.
+     */
+    private void runAll(final List<Callable<Void>> tasks, final int maxThreads) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        final Queue<Callable<Void>> pending = new ConcurrentLinkedQueue<Callable<Void>>(tasks);
+        final Runnable worker = new Runnable() {
+
+            public void run() {
+                Callable<Void> task;
+                while ((task = pending.poll()) != null) {
+                    try {
+                        task.call();
+                    } catch (final Exception e) {
+                        LOGGER.error("Task failed", e);
+                    }
+                }
+            }
+        };
+        final List<Future<?>> helpers = new ArrayList<Future<?>>();
+        if (executor != null) {
+            final int helperCount = Math.min(maxThreads, tasks.size()) - 1;
             try {
-                mainFolder = (Folder) session.getObject(session.createObjectId(mainFolderId));
-            } catch (Throwable t) {
-                mainFolderId = null;
-                processDefinitionMap.remove(definitionUUID);
+                for (int i = 0; i < helperCount; i++) {
+                    helpers.add(executor.submit(worker));
+                }
+            } catch (final RejectedExecutionException e) {
+                // closed: the calling thread runs what is left
             }
         }
-        if (mainFolderId == null) {
-            final String processDefUUIDValue = definitionUUID.getValue();
-            List<org.ow2.bonita.services.Folder> childrenFolder = getChildrenFolder(session, rootFolderId);
-            for (org.ow2.bonita.services.Folder folder : childrenFolder) {
-                if (processDefUUIDValue.equals(folder.getName())) {
-                    mainFolderId = folder.getId();
-                    break;
+        worker.run();
+        for (final Future<?> helper : helpers) {
+            // a helper that did not start has nothing left to do
+            if (!helper.cancel(false)) {
+                try {
+                    helper.get();
+                } catch (final ExecutionException e) {
+                    LOGGER.error("Task failed", e.getCause());
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
+        }
+    }
+
+    /**
+     * Stop the threads shared by the bulk creations and the deletions and close the folder index, the manager must not be
+     * used afterwards.
+     */
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (folderIndex != null) {
+            folderIndex.close();
+        }
+    }
+
+    private String createPath(Session session, final ProcessDefinitionUUID definitionUUID, final ProcessInstanceUUID instanceUUID)
+            throws DocumentationCreationException {
+        final String mainFolderId = getProcessDefinitionFolder(session, definitionUUID);
+        if (instanceUUID == null) {
+            return mainFolderId;
+        }
+        return getProcessInstanceFolder(session, mainFolderId, instanceUUID);
+    }
+
+    /**
+     * Known folders are returned without locking. Otherwise the lookup or creation is made under the lock of the stripe of
+     * the definition so that concurrent callers for the same definition create it only once.
+     */
+    private String getProcessDefinitionFolder(final Session session, final ProcessDefinitionUUID definitionUUID)
+            throws DocumentationCreationException {
+        final String knownFolderId = getValidFolderId(session, processDefinitionMap, definitionUUID);
+        if (knownFolderId != null) {
+            return knownFolderId;
+        }
+        synchronized (getFolderLock(definitionUUID)) {
+            // another thread may have resolved it while we were waiting
+            String mainFolderId = processDefinitionMap.get(definitionUUID);
+            if (mainFolderId != null) {
+                return mainFolderId;
+            }
+            final String processDefUUIDValue = definitionUUID.getValue();
+            mainFolderId = findChildFolder(session, rootFolderId, processDefUUIDValue);
             if (mainFolderId == null) {
                 try {
                     mainFolderId = createFolder(session, processDefUUIDValue, rootFolderId).getId();
                 } catch (final FolderAlreadyExistsException e) {
-                    e.printStackTrace();
+                    // created by someone else in the meantime
+                    mainFolderId = findChildFolder(session, rootFolderId, processDefUUIDValue);
+                    if (mainFolderId == null) {
+                        LOGGER.error("Folder of process definition " + processDefUUIDValue
+                                + " already exists but can't be found", e);
+                        throw new DocumentationCreationException("Folder already exists", e);
+                    }
                 }
             }
             processDefinitionMap.put(definitionUUID, mainFolderId);
-        }
-        if (instanceUUID == null) {
+            folderMapped(definitionUUID, mainFolderId);
             return mainFolderId;
         }
-        if (mainFolder == null) {
-            mainFolder = (Folder) session.getObject(session.createObjectId(mainFolderId));
+    }
+
+    private String getProcessInstanceFolder(final Session session, final String mainFolderId,
+            final ProcessInstanceUUID instanceUUID) throws DocumentationCreationException {
+        final String knownFolderId = getValidFolderId(session, processInstanceMap, instanceUUID);
+        if (knownFolderId != null) {
+            return knownFolderId;
         }
-        String subFolderId = null;
-        if (processInstanceMap.containsKey(instanceUUID)) {
-            subFolderId = processInstanceMap.get(instanceUUID);
-            try {
-                session.getObject(session.createObjectId(subFolderId));
-            } catch (Throwable t) {
-                subFolderId = null;
-                processInstanceMap.remove(instanceUUID);
+        synchronized (getFolderLock(instanceUUID)) {
+            String subFolderId = processInstanceMap.get(instanceUUID);
+            if (subFolderId != null) {
+                return subFolderId;
             }
-        }
-        if (subFolderId == null) {
             final String processInstValue = instanceUUID.getValue();
-            for (CmisObject object : mainFolder.getChildren()) {
-                if (object instanceof Folder && processInstValue.equals(object.getName())) {
-                    subFolderId = object.getId();
-                    break;
-                }
-            }
+            subFolderId = findChildFolder(session, mainFolderId, processInstValue);
             if (subFolderId == null) {
                 try {
                     subFolderId = createFolder(session, processInstValue, mainFolderId).getId();
                 } catch (final FolderAlreadyExistsException e) {
-                    throw new DocumentationCreationException("Folder already exists", e);
+                    subFolderId = findChildFolder(session, mainFolderId, processInstValue);
+                    if (subFolderId == null) {
+                        throw new DocumentationCreationException("Folder already exists", e);
+                    }
                 }
             }
             processInstanceMap.put(instanceUUID, subFolderId);
+            folderMapped(instanceUUID, subFolderId);
+            return subFolderId;
+        }
+    }
+
+    /**
+     * @return the id of the folder mapped to the key if it still exists in the repository, null otherwise
+     */
+    private <K extends AbstractUUID> String getValidFolderId(final Session session, final ConcurrentMap<K, String> folderMap,
+            final K key) {
+        final String folderId = folderMap.get(key);
+        if (folderId == null) {
+            return null;
+        }
+        try {
+            getObject(session, folderId, OperationContextProfile.MINIMAL_METADATA);
+            unverifiedFolders.remove(folderId);
+            return folderId;
+        } catch (Throwable t) {
+            if (folderMap.remove(key, folderId)) {
+                folderRemoved(key);
+            }
+            return null;
+        }
+    }
+
+    private String findChildFolder(final Session session, final String parentFolderId, final String name) {
+        final Folder parent = (Folder) getObject(session, parentFolderId, OperationContextProfile.MINIMAL_METADATA);
+        final CmisObject child = getChildByName(session, parent, name);
+        if (child instanceof Folder) {
+            return child.getId();
+        }
+        return null;
+    }
+
+    /**
+     * Look up a child by its path: a single request whatever the number of children of the folder
+     * 
+     * @return the child of the folder having this name or null if there is none
+     */
+    private CmisObject getChildByName(final Session session, final Folder parent, final String name) {
+        final String parentPath = parent.getPath();
+        final String path = parentPath.endsWith("/") ? parentPath + name : parentPath + "/" + name;
+        try {
+            return session.getObjectByPath(path, operationContexts.get(OperationContextProfile.MINIMAL_METADATA));
+        } catch (final CmisObjectNotFoundException e) {
+            return null;
+        }
+    }
+
+    private void folderMapped(final AbstractUUID uuid, final String folderId) {
+        if (folderIndex != null) {
+            folderIndex.folderMapped(uuid, folderId);
         }
-        return subFolderId;
+    }
+
+    private void folderRemoved(final AbstractUUID uuid) {
+        if (folderIndex != null) {
+            folderIndex.folderRemoved(uuid);
+        }
+    }
+
+    private Object getFolderLock(final Object key) {
+        return folderLocks[(key.hashCode() & Integer.MAX_VALUE) % folderLocks.length];
     }
 
     public SearchResult search(final DocumentSearchBuilder builder, final int fromResult, final int maxResults) {
         final Session session2 = getSession();
-        final StringBuilder whereClause = new StringBuilder();
-        whereClause.append("SELECT * FROM cmis:document");
-        final List<Object> query = builder.getQuery();
-        if (!query.isEmpty()) {
-            whereClause.append(" WHERE ");
-        }
-        for (final Object object : query) {
-            if (object instanceof DocumentCriterion) {
-                final DocumentCriterion criterion = (DocumentCriterion) object;
-                switch (criterion.getField()) {
-                case ID:
-                    createEqualsOrInClause(whereClause, criterion, "cmis:objectId");
-                    break;
-                case PROCESS_DEFINITION_UUID:
-                    String idOfProcessDefinitionUUID = getIdOfProcessDefinitionUUID(session2, criterion);
-                    if (idOfProcessDefinitionUUID == null) {
-                        final List<Document> list = Collections.emptyList();
-                        return new SearchResult(list, 0);
-                    }
-                    whereClause.append(" IN_TREE('");
-                    whereClause.append(idOfProcessDefinitionUUID);
-                    whereClause.append("') ");
-                    break;
-                case PROCESS_DEFINITION_UUID_WITHOUT_INSTANCES:
-                    String idOfProcessDefinitionUUID2 = getIdOfProcessDefinitionUUID(session2, criterion);
-                    if (idOfProcessDefinitionUUID2 == null) {
-                        final List<Document> list = Collections.emptyList();
-                        return new SearchResult(list, 0);
-                    }
-                    whereClause.append(" IN_FOLDER('");
-                    whereClause.append(idOfProcessDefinitionUUID2);
-                    whereClause.append("') ");
-                    break;
-                case PROCESS_INSTANCE_UUID:
-                    ProcessInstanceUUID processInstanceUUID = new ProcessInstanceUUID((String) criterion.getValue());
-                    final String id2;
-                    if (processInstanceMap.containsKey(processInstanceUUID)) {
-                        id2 = processInstanceMap.get(processInstanceUUID);
-                    } else {
-                        final List<org.ow2.bonita.services.Folder> folders2 = getFolders(session2, processInstanceUUID.getValue());
-                        if (folders2.size() == 0) {
-                            final List<Document> list = Collections.emptyList();
-                            return new SearchResult(list, 0);
-                        }
-                        id2 = folders2.get(0).getId();
-                    }
-                    whereClause.append(" IN_FOLDER('");
-                    whereClause.append(id2);
-                    whereClause.append("') ");
-                    break;
-                case NAME:
-                    createEqualsOrInClause(whereClause, criterion, "cmis:name");
-                    break;
-                case FILENAME:
-                    createEqualsOrInClause(whereClause, criterion, "cmis:contentStreamFileName");
-                    break;
-                case CREATION_DATE:
-                    getTimeComparison(whereClause, criterion, "cmis:creationDate");
-                    break;
-                case AUTHOR:
-                    createEqualsOrInClause(whereClause, criterion, "cmis:createdBy");
-                    break;
-                case LAST_MODIFICATION_DATE:
-                    getTimeComparison(whereClause, criterion, "cmis:lastModificationDate");
-                    break;
-                case IS_EMPTY:
-                    if ((Boolean) criterion.getValue()) {
-                        whereClause.append(" cmis:contentStreamLength = 0 ");
-                    } else {
-                        whereClause.append(" cmis:contentStreamLength > 0 ");
-                    }
-                    break;
-                }
-            } else {
-                whereClause.append(" ").append(object).append(" ");
-            }
+        final Set<DocumentField> projection = builder.getProjection();
+        final QueryTemplate template = getQueryTemplate(builder, projection);
+        final String[] literals = bindValues(session2, template, builder);
+        if (literals == null) {
+            final List<Document> list = Collections.emptyList();
+            return new SearchResult(list, 0);
         }
-        ItemIterable<QueryResult> queryResult = session2.query(whereClause.toString(), builder.isSearchAllVersions());
+        // when the search is restricted to a single folder the parent of all results is already known
+        final String folderScope = template.getScopeSlot() != -1 ? unquote(literals[template.getScopeSlot()]) : null;
+        ItemIterable<QueryResult> queryResult = session2.query(template.bind(literals), builder.isSearchAllVersions());
         queryResult = queryResult.skipTo(fromResult);
         final ItemIterable<QueryResult> page = queryResult.getPage(maxResults);
-        final List<Document> documents = new ArrayList<Document>();
+        final List<QueryResult> rows = new ArrayList<QueryResult>();
+        final List<String> documentIds = new ArrayList<String>();
         for (final QueryResult queryResult2 : page) {
-            final PropertyData<Object> propertyById = queryResult2.getPropertyById("cmis:objectId");
-            final org.apache.chemistry.opencmis.client.api.Document doc = (org.apache.chemistry.opencmis.client.api.Document) session2
-                    .getObject(session2.createObjectId((String) propertyById.getValues().get(0)));
-            documents.add(convertDocument(doc));
+            rows.add(queryResult2);
+            documentIds.add((String) queryResult2.getPropertyValueById(PropertyIds.OBJECT_ID));
+        }
+        final Map<String, ParentFolder> parents;
+        if (projection.contains(DocumentField.PARENT_FOLDER)) {
+            parents = resolveParents(session2, documentIds, folderScope);
+        } else {
+            parents = Collections.emptyMap();
+        }
+        final List<Document> documents = new ArrayList<Document>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            documents.add(convertQueryResult(rows.get(i), parents.get(documentIds.get(i))));
         }
         int totalNumItems = (int) queryResult.getTotalNumItems();
         final SearchResult result = new SearchResult(documents, totalNumItems < 0 ? 0 : totalNumItems);
         return result;
     }
 
-    private void createEqualsOrInClause(final StringBuilder whereClause, final DocumentCriterion criterion, String field) {
-        if (criterion.getValues() != null) {
-            whereClause.append(" " + field + " IN (");
-            Collection<?> values = criterion.getValues();
-            for (Iterator<?> iterator = values.iterator(); iterator.hasNext();) {
-                Object object2 = (Object) iterator.next();
-                whereClause.append("'");
-                whereClause.append(object2);
-                whereClause.append("'");
-                if (iterator.hasNext()) {
-                    whereClause.append(",");
-                }
+    public Iterator<Document> searchCursor(final DocumentSearchBuilder builder, final int pageSize) {
+        final Session session2 = getSession();
+        final Set<DocumentField> projection = builder.getProjection();
+        final QueryTemplate template = getQueryTemplate(builder, projection);
+        final String[] literals = bindValues(session2, template, builder);
+        if (literals == null) {
+            final List<Document> list = Collections.emptyList();
+            return list.iterator();
+        }
+        final Set<String> filter = new HashSet<String>();
+        for (final DocumentField field : projection) {
+            if (field.getCmisProperty() != null) {
+                filter.add(field.getCmisProperty());
             }
-            whereClause.append(") ");
-        } else {
-            whereClause.append(" " + field + " = '");
-            whereClause.append(criterion.getValue());
-            whereClause.append("' ");
         }
+        final OperationContext context = session2.createOperationContext(filter, false, false, false,
+                IncludeRelationships.NONE, Collections.singleton("cmis:none"), false, null, false, pageSize);
+        final ItemIterable<QueryResult> results = session2.query(template.bind(literals), builder.isSearchAllVersions(),
+                context);
+        final String folderScope = template.getScopeSlot() != -1 ? unquote(literals[template.getScopeSlot()]) : null;
+        return new SearchCursor(session2, results.iterator(), pageSize, projection.contains(DocumentField.PARENT_FOLDER),
+                folderScope);
     }
 
     /**
-     * @param criterion
-     * @param session2
-     * @return
+     * Only the ids are selected, if the repository does not give the total number of results they are counted page by
+     * page
      */
-    private String getIdOfProcessDefinitionUUID(Session session2, final DocumentCriterion criterion) {
-        final String id;
-        ProcessDefinitionUUID processDef = new ProcessDefinitionUUID((String) criterion.getValue());
-        if (processDefinitionMap.containsKey(processDef)) {
-            id = processDefinitionMap.get(processDef);
-        } else {
-            final List<org.ow2.bonita.services.Folder> folders = getFolders(session2, processDef.getValue());
-            if (folders.size() == 0) {
-                return null;
-            }
-            id = folders.get(0).getId();
+    public long count(final DocumentSearchBuilder builder) {
+        final Session session2 = getSession();
+        final QueryTemplate template = getQueryTemplate(builder, COUNT_PROJECTION);
+        final String[] literals = bindValues(session2, template, builder);
+        if (literals == null) {
+            return 0;
+        }
+        final OperationContext context = session2.createOperationContext(Collections.singleton(PropertyIds.OBJECT_ID), false,
+                false, false, IncludeRelationships.NONE, Collections.singleton("cmis:none"), false, null, false,
+                COUNT_PAGE_SIZE);
+        final ItemIterable<QueryResult> results = session2.query(template.bind(literals), builder.isSearchAllVersions(),
+                context);
+        final long totalNumItems = results.getTotalNumItems();
+        if (totalNumItems >= 0) {
+            return totalNumItems;
         }
-        return id;
+        long count = 0;
+        for (final Iterator<QueryResult> iterator = results.iterator(); iterator.hasNext(); iterator.next()) {
+            count++;
+        }
+        return count;
     }
 
-    private void getTimeComparison(final StringBuilder whereClause, final DocumentCriterion criterion, final String attribute) {
+    private QueryTemplate getQueryTemplate(final DocumentSearchBuilder builder, final Set<DocumentField> projection) {
+        final String shape = QueryTemplate.shapeOf(builder, projection);
+        QueryTemplate template = queryTemplates.get(shape);
+        if (template == null) {
+            template = QueryTemplate.compile(builder, projection);
+            queryTemplates.put(shape, template);
+        }
+        return template;
+    }
+
+    /**
+     * @return the literals to bind to the slots of the template or null if a process folder of the criteria does not
+     *         exist: the search has no result
+     */
+    private String[] bindValues(final Session session, final QueryTemplate template, final DocumentSearchBuilder builder) {
+        final List<Object> values = template.valuesOf(builder);
+        final String[] literals = new String[template.getSlotCount()];
         final SimpleDateFormat cmisDateFormat = CMISDocumentManager.CMIS_DATE_FORMAT.get();
-        if (criterion.getValue() != null) {
-            whereClause.append(attribute);
-            whereClause.append(" = TIMESTAMP '");
-            final Date value = (Date) criterion.getValue();
-            final String fromDate = cmisDateFormat.format(localToServerDate(value));
-            whereClause.append(fromDate);
-            whereClause.append("' ");
-        } else {
-            whereClause.append(" (");
-            whereClause.append(attribute);
-            whereClause.append(" >= TIMESTAMP '");
-            final Date from = (Date) criterion.getFrom();
-            final String fromDate = cmisDateFormat.format(localToServerDate(from));
-            whereClause.append(fromDate);
-            whereClause.append("' AND ");
-            whereClause.append(attribute);
-            whereClause.append(" <= TIMESTAMP '");
-            final Date to = (Date) criterion.getTo();
-            final String toDate = cmisDateFormat.format(localToServerDate(to));
-            whereClause.append(toDate);
-            whereClause.append("') ");
+        final StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < literals.length; i++) {
+            final Object value = values.get(i);
+            literal.setLength(0);
+            switch (template.getSlot(i)) {
+            case STRING:
+                QueryFormatter.appendCmisString(literal, String.valueOf(value));
+                break;
+            case STRINGS:
+                for (final Iterator<?> iterator = ((Collection<?>) value).iterator(); iterator.hasNext();) {
+                    QueryFormatter.appendCmisString(literal, String.valueOf(iterator.next()));
+                    if (iterator.hasNext()) {
+                        literal.append(",");
+                    }
+                }
+                break;
+            case TIMESTAMP:
+                literal.append('\'').append(cmisDateFormat.format(localToServerDate((Date) value))).append('\'');
+                break;
+            case DEFINITION_FOLDER:
+                final String definitionFolderId = getIdOfProcessDefinitionUUID(session, (String) value);
+                if (definitionFolderId == null) {
+                    return null;
+                }
+                QueryFormatter.appendCmisString(literal, definitionFolderId);
+                break;
+            case INSTANCE_FOLDER:
+                final String instanceFolderId = getIdOfProcessInstanceUUID(session, (String) value);
+                if (instanceFolderId == null) {
+                    return null;
+                }
+                QueryFormatter.appendCmisString(literal, instanceFolderId);
+                break;
+            }
+            literals[i] = literal.toString();
+        }
+        return literals;
+    }
+
+    private static String unquote(final String literal) {
+        return literal.substring(1, literal.length() - 1);
+    }
+
+    private String getIdOfProcessDefinitionUUID(final Session session2, final String processDefinitionUUID) {
+        ProcessDefinitionUUID processDef = new ProcessDefinitionUUID(processDefinitionUUID);
+        final String id = checkIndexedFolder(session2, processDefinitionMap, processDef);
+        if (id != null) {
+            return id;
+        }
+        final List<org.ow2.bonita.services.Folder> folders = getFolders(session2, processDef.getValue());
+        if (folders.size() == 0) {
+            return null;
+        }
+        return folders.get(0).getId();
+    }
+
+    private String getIdOfProcessInstanceUUID(final Session session2, final String processInstanceUUID) {
+        final String id = checkIndexedFolder(session2, processInstanceMap, new ProcessInstanceUUID(processInstanceUUID));
+        if (id != null) {
+            return id;
+        }
+        final List<org.ow2.bonita.services.Folder> folders = getFolders(session2, processInstanceUUID);
+        if (folders.size() == 0) {
+            return null;
+        }
+        return folders.get(0).getId();
+    }
+
+    /**
+     * The folders loaded from the folder index may have been deleted by another node or by hand since they were written,
+     * they are checked against the repository the first time they are used
+     * 
+     * @return the id of the folder mapped to the key, null if there is none or if it was deleted
+     */
+    private <K extends AbstractUUID> String checkIndexedFolder(final Session session, final ConcurrentMap<K, String> folderMap,
+            final K key) {
+        final String folderId = folderMap.get(key);
+        if (folderId == null || !unverifiedFolders.containsKey(folderId)) {
+            return folderId;
+        }
+        try {
+            getObject(session, folderId, OperationContextProfile.MINIMAL_METADATA);
+            unverifiedFolders.remove(folderId);
+            return folderId;
+        } catch (final CmisObjectNotFoundException e) {
+            unverifiedFolders.remove(folderId);
+            if (folderMap.remove(key, folderId)) {
+                folderRemoved(key);
+            }
+            return null;
         }
     }
 
     public void clear() throws DocumentNotFoundException {
-        Session session = getSession();
-        clear(session, getRootFolder(session));
-        sessionsMap.clear();
-        processDefinitionMap.clear();
-        processInstanceMap.clear();
-        session = null;
+        checkDeleted(clear((DeletionListener) null));
+    }
+
+    public DeletionReport clear(final DeletionListener listener) {
+        final Session session = getSession();
+        try {
+            return deleteChildren((Folder) getObject(session, rootFolderId, OperationContextProfile.MINIMAL_METADATA),
+                    listener, 0, false);
+        } finally {
+            invalidateAll();
+            sessionPool.clear();
+            processDefinitionMap.clear();
+            processInstanceMap.clear();
+            unverifiedFolders.clear();
+            stringPool.clear();
+            if (contentIndex != null) {
+                contentIndex.clear();
+            }
+            if (folderIndex != null) {
+                folderIndex.clear();
+            }
+        }
     }
 
     public void clear(org.ow2.bonita.services.Folder folder) throws DocumentNotFoundException {
@@ -920,46 +2156,60 @@ public class CMISDocumentManager implements DocumentationManager {
     }
 
     public void clear(Session session2, org.ow2.bonita.services.Folder folder) throws DocumentNotFoundException {
-        Folder cmisFolder = null;
         try {
-            for (org.ow2.bonita.services.Folder subFolder : getChildrenFolder(session2, folder.getId())) {
-                cmisFolder = (Folder) session2.getObject(session2.createObjectId(subFolder.getId()));
-                cmisFolder.deleteTree(true, null, true);
-            }
-            for (Document doc : getChildrenDocuments(session2, folder.getId())) {
-                deleteDocument(session2, doc.getId(), true);
-            }
+            checkDeleted(deleteChildren((Folder) getObject(session2, folder.getId(), OperationContextProfile.MINIMAL_METADATA),
+                    null, 0, true));
         } catch (CmisBaseException e) {
-            throw new DocumentNotFoundException(folder.getId());
+            throw new DocumentNotFoundException(folder.getId(), e);
+        }
+    }
+
+    private static void checkDeleted(final DeletionReport report) throws DocumentNotFoundException {
+        if (report.hasFailures()) {
+            final Entry<String, Exception> failure = report.getFailures().entrySet().iterator().next();
+            throw new DocumentNotFoundException(failure.getKey(), failure.getValue());
         }
     }
 
     public void updateDocumentContent(String documentId, String fileName, String mimeType, int size, byte[] content)
             throws DocumentNotFoundException {
+        if (content != null) {
+            updateDocumentContent(documentId, fileName, mimeType, new ByteArrayInputStream(content), size);
+        } else {
+            updateDocumentContent(documentId, fileName, mimeType, null, size);
+        }
+    }
+
+    public void updateDocumentContent(String documentId, String fileName, String mimeType, InputStream content,
+            long contentLength) throws DocumentNotFoundException {
         Session session2 = getSession();
         org.apache.chemistry.opencmis.client.api.Document document = null;
         try {
-            document = (org.apache.chemistry.opencmis.client.api.Document) session2
-                    .getObject(session2.createObjectId(documentId));
+            document = (org.apache.chemistry.opencmis.client.api.Document) getObject(session2, documentId,
+                    OperationContextProfile.MINIMAL_METADATA);
         } catch (Exception e) {
             throw new DocumentNotFoundException(documentId, e);
         }
         if (content != null) {
-            ByteArrayInputStream inputStream = null;
+            final ContentCodec.Encoding encoding = encode(content, mimeType, contentLength);
             try {
-                inputStream = new ByteArrayInputStream(content);
-                ContentStream contentStream = session2.getBinding().getObjectFactory()
-                        .createContentStream(fileName, BigInteger.valueOf(size), mimeType, inputStream);
+                final ContentStream contentStream;
+                if (encoding != null) {
+                    contentStream = session2.getBinding().getObjectFactory().createContentStream(fileName, null,
+                            encoding.getMimeType(), CallStatistics.countUpload(encoding.getStream()));
+                } else {
+                    contentStream = session2.getBinding().getObjectFactory()
+                            .createContentStream(fileName, contentLength >= 0 ? BigInteger.valueOf(contentLength) : null,
+                                    mimeType, CallStatistics.countUpload(content));
+                }
                 document.setContentStream(contentStream, true);
             } finally {
-                if (inputStream != null) {
-                    try {
-                        inputStream.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                if (encoding != null) {
+                    encoding.end();
                 }
             }
+            invalidate(documentId);
+            invalidateVersionSeries(document.getVersionSeriesId());
         }
     }
 
@@ -973,10 +2223,11 @@ public class CMISDocumentManager implements DocumentationManager {
         try {
             String parentFolder = createPath(session2, processDefinitionUUID, processInstanceUUID);
             org.apache.chemistry.opencmis.client.api.Document document;
-            document = (org.apache.chemistry.opencmis.client.api.Document) session2
-                    .getObject(session2.createObjectId(documentId));
-            Folder cmisFolder = (Folder) session2.getObject(session2.createObjectId(parentFolder));
+            document = (org.apache.chemistry.opencmis.client.api.Document) getObject(session2, documentId,
+                    OperationContextProfile.MINIMAL_METADATA);
+            Folder cmisFolder = (Folder) getObject(session2, parentFolder, OperationContextProfile.MINIMAL_METADATA);
             document.addToFolder(cmisFolder, true);
+            invalidate(documentId);
         } catch (CmisRuntimeException e) {
             throw new DocumentNotFoundException(documentId);
         } catch (DocumentationCreationException dce) {
@@ -1013,4 +2264,170 @@ public class CMISDocumentManager implements DocumentationManager {
         return createVersion(session2, documentId, isMajorVersion, fileName, mimeType, content);
     }
 
+    /**
+     * Converts the rows of a query one page at a time: only the current page is kept in memory and the next page is
+     * fetched when the current one is consumed
+     */
+    private final class SearchCursor implements Iterator<Document> {
+
+        private final Session               session;
+        private final Iterator<QueryResult> rows;
+        private final int                   pageSize;
+        private final boolean               withParents;
+        private final String                folderScope;
+        private final List<Document>        page = new ArrayList<Document>();
+        private int                         position;
+
+        SearchCursor(final Session session, final Iterator<QueryResult> rows, final int pageSize, final boolean withParents,
+                final String folderScope) {
+            this.session = session;
+            this.rows = rows;
+            this.pageSize = pageSize;
+            this.withParents = withParents;
+            this.folderScope = folderScope;
+        }
+
+        public boolean hasNext() {
+            if (position < page.size()) {
+                return true;
+            }
+            fetchPage();
+            return position < page.size();
+        }
+
+        public Document next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.get(position++);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fetchPage() {
+            page.clear();
+            position = 0;
+            final List<QueryResult> pageRows = new ArrayList<QueryResult>(pageSize);
+            final List<String> documentIds = new ArrayList<String>(pageSize);
+            while (pageRows.size() < pageSize && rows.hasNext()) {
+                final QueryResult row = rows.next();
+                pageRows.add(row);
+                documentIds.add((String) row.getPropertyValueById(PropertyIds.OBJECT_ID));
+            }
+            final Map<String, ParentFolder> parents;
+            if (withParents) {
+                parents = resolveParents(session, documentIds, folderScope);
+            } else {
+                parents = Collections.emptyMap();
+            }
+            for (int i = 0; i < pageRows.size(); i++) {
+                page.add(convertQueryResult(pageRows.get(i), parents.get(documentIds.get(i))));
+            }
+        }
+    }
+
+    /**
+     * Skip the start of a stream and stop after a number of bytes
+     */
+    private static final class RangeInputStream extends FilterInputStream {
+
+        private long toSkip;
+        private long remaining;
+
+        /**
+         * @param length
+         *            number of bytes to read after the skipped ones, -1 for all
+         */
+        RangeInputStream(final InputStream in, final long toSkip, final long length) {
+            super(in);
+            this.toSkip = toSkip;
+            this.remaining = length >= 0 ? length : Long.MAX_VALUE;
+        }
+
+        private void skipStart() throws IOException {
+            while (toSkip > 0) {
+                final long skipped = in.skip(toSkip);
+                if (skipped > 0) {
+                    toSkip -= skipped;
+                } else if (in.read() == -1) {
+                    toSkip = 0;
+                    remaining = 0;
+                } else {
+                    toSkip--;
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            skipStart();
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            skipStart();
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            skipStart();
+            final long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            skipStart();
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Id and path of the folder containing a document and the process UUIDs deduced from its path
+     */
+    private static final class ParentFolder {
+
+        private final String id;
+        private final String path;
+        private final String processDefinitionUUID;
+        private final String processInstanceUUID;
+
+        ParentFolder(final String id, final String path) {
+            this.id = id;
+            this.path = path;
+            final String[] split = path.substring(1).split("/");
+            if (split.length >= 2) {// will work only if children of the folder
+                processDefinitionUUID = split[split.length - 2];
+                processInstanceUUID = split[split.length - 1];
+            } else {
+                processDefinitionUUID = null;
+                processInstanceUUID = null;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,281 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.chemistry.opencmis.client.api.OperationContext;
+
+/**
+ *
+ * Tuning options of the {@link CMISDocumentManager}
+ *
+ */
+public class CMISDocumentManagerConfiguration {
+
+    private int                                                  maxPooledUsers     = 256;
+    private long                                                 sessionIdleTimeout = 30 * 60 * 1000L;
+    private int                                                  sessionsPerUser    = 1;
+    private boolean                                              objectCacheEnabled = false;
+    private int                                                  maxCachedDocuments = 1000;
+    private int                                                  maxCachedFolders   = 1000;
+    private long                                                 objectCacheTtl     = 60 * 1000L;
+    private int                                                  bulkConcurrency    = 4;
+    private int                                                  deletionConcurrency = 4;
+    private File                                                 folderIndexFile;
+    private boolean                                              contentDeduplication = false;
+    private int                                                  maxIndexedContents = 10000;
+    private File                                                 contentCacheDirectory;
+    private long                                                 contentCacheSize   = 256 * 1024 * 1024L;
+    private final Set<String>                                    compressedMimeTypes = new HashSet<String>();
+    private File                                                 uploadDirectory    = new File(
+                                                                                            System.getProperty("java.io.tmpdir"),
+                                                                                            "bonita-cmis-uploads");
+    private long                                                 uploadExpiry       = 24 * 60 * 60 * 1000L;
+    private final Map<OperationContextProfile, OperationContext> operationContexts  = new EnumMap<OperationContextProfile, OperationContext>(
+                                                                                            OperationContextProfile.class);
+
+    public CMISDocumentManagerConfiguration maxPooledUsers(final int maxPooledUsers) {
+        this.maxPooledUsers = maxPooledUsers;
+        return this;
+    }
+
+    /**
+     * @param sessionIdleTimeout
+     *            time in milliseconds after which the sessions of an inactive user can be evicted, 0 to disable
+     */
+    public CMISDocumentManagerConfiguration sessionIdleTimeout(final long sessionIdleTimeout) {
+        this.sessionIdleTimeout = sessionIdleTimeout;
+        return this;
+    }
+
+    public CMISDocumentManagerConfiguration sessionsPerUser(final int sessionsPerUser) {
+        this.sessionsPerUser = sessionsPerUser;
+        return this;
+    }
+
+    /**
+     * Replace the default options of a profile, see {@link OperationContextProfile#createDefaultContext()}
+     */
+    public CMISDocumentManagerConfiguration operationContext(final OperationContextProfile profile,
+            final OperationContext operationContext) {
+        operationContexts.put(profile, operationContext);
+        return this;
+    }
+
+    /**
+     * Enable the client side cache of documents and folders, it is disabled by default.
+     * 
+     * @param maxCachedDocuments
+     *            maximum number of documents kept in the cache
+     * @param maxCachedFolders
+     *            maximum number of folders kept in the cache
+     * @param objectCacheTtl
+     *            time in milliseconds an object can be served from the cache, 0 to keep it until evicted
+     */
+    public CMISDocumentManagerConfiguration objectCache(final int maxCachedDocuments, final int maxCachedFolders,
+            final long objectCacheTtl) {
+        this.objectCacheEnabled = true;
+        this.maxCachedDocuments = maxCachedDocuments;
+        this.maxCachedFolders = maxCachedFolders;
+        this.objectCacheTtl = objectCacheTtl;
+        return this;
+    }
+
+    /**
+     * @param bulkConcurrency
+     *            maximum number of documents uploaded at the same time by a bulk creation
+     */
+    public CMISDocumentManagerConfiguration bulkConcurrency(final int bulkConcurrency) {
+        this.bulkConcurrency = bulkConcurrency;
+        return this;
+    }
+
+    /**
+     * @param deletionConcurrency
+     *            maximum number of documents or folder trees deleted at the same time by clear and deleteFolder. Deletions
+     *            and bulk creations share the threads of the manager, their number is the larger of both concurrencies
+     *            and they are stopped by {@link CMISDocumentManager#close()}
+     */
+    public CMISDocumentManagerConfiguration deletionConcurrency(final int deletionConcurrency) {
+        this.deletionConcurrency = deletionConcurrency;
+        return this;
+    }
+
+    /**
+     * Keep the ids of the folders of the processes in a file so that they are known after a restart, disabled by default
+     * 
+     * @param folderIndexFile
+     *            the file of the index, created if it does not exist
+     */
+    public CMISDocumentManagerConfiguration folderIndex(final File folderIndexFile) {
+        this.folderIndexFile = folderIndexFile;
+        return this;
+    }
+
+    /**
+     * Avoid uploading again a content already uploaded by this manager, disabled by default.
+     * 
+     * Contents are identified by their SHA-256 and mime type. A known content with the same file name is copied by the
+     * server instead of being sent again; otherwise, or when the copy fails, it is uploaded as usual. Contents given as
+     * streams are only hashed before the upload if they support mark and are at most 16MB, others are hashed while they
+     * are uploaded.
+     * 
+     * The AtomPub binding can't copy documents: deduplication is ignored with a warning when the manager uses it, and
+     * turned off the first time a repository refuses a copy.
+     * 
+     * @param maxIndexedContents
+     *            maximum number of contents remembered
+     */
+    public CMISDocumentManagerConfiguration contentDeduplication(final int maxIndexedContents) {
+        this.contentDeduplication = true;
+        this.maxIndexedContents = maxIndexedContents;
+        return this;
+    }
+
+    /**
+     * Keep the contents read with getContent in a directory, disabled by default. Contents are cached per version of a
+     * document and the least recently used ones are removed first; the directory is reused after a restart.
+     * 
+     * @param contentCacheDirectory
+     *            the directory of the cached contents, created if it does not exist
+     * @param contentCacheSize
+     *            maximum number of bytes kept in the directory
+     */
+    public CMISDocumentManagerConfiguration contentCache(final File contentCacheDirectory, final long contentCacheSize) {
+        this.contentCacheDirectory = contentCacheDirectory;
+        this.contentCacheSize = contentCacheSize;
+        return this;
+    }
+
+    /**
+     * @param uploadDirectory
+     *            directory of the chunks received by a {@link ChunkedUpload}, a directory of java.io.tmpdir by default
+     */
+    public CMISDocumentManagerConfiguration uploadDirectory(final File uploadDirectory) {
+        this.uploadDirectory = uploadDirectory;
+        return this;
+    }
+
+    /**
+     * @param uploadExpiry
+     *            time in milliseconds after which an upload that received no chunk is aborted and its files deleted, one
+     *            day by default, 0 to keep them forever
+     */
+    public CMISDocumentManagerConfiguration uploadExpiry(final long uploadExpiry) {
+        this.uploadExpiry = uploadExpiry;
+        return this;
+    }
+
+    /**
+     * Compress the contents of these mime types when they are stored, nothing is compressed by default. Contents smaller
+     * than 1KB are stored as is.
+     * 
+     * Compressed contents are uncompressed when they are read by any manager, the mime type and size of their documents
+     * are the ones of the uncompressed content. The stored mime type has additional parameters, searching on the exact
+     * mime type does not find compressed documents.
+     * 
+     * @param mimeTypes
+     *            complete mime types like <code>application/json</code> or whole types like <code>text/*</code>
+     */
+    public CMISDocumentManagerConfiguration compression(final String... mimeTypes) {
+        compressedMimeTypes.addAll(Arrays.asList(mimeTypes));
+        return this;
+    }
+
+    public int getMaxPooledUsers() {
+        return maxPooledUsers;
+    }
+
+    public long getSessionIdleTimeout() {
+        return sessionIdleTimeout;
+    }
+
+    public int getSessionsPerUser() {
+        return sessionsPerUser;
+    }
+
+    public boolean isObjectCacheEnabled() {
+        return objectCacheEnabled;
+    }
+
+    public int getMaxCachedDocuments() {
+        return maxCachedDocuments;
+    }
+
+    public int getMaxCachedFolders() {
+        return maxCachedFolders;
+    }
+
+    public long getObjectCacheTtl() {
+        return objectCacheTtl;
+    }
+
+    public int getBulkConcurrency() {
+        return bulkConcurrency;
+    }
+
+    public int getDeletionConcurrency() {
+        return deletionConcurrency;
+    }
+
+    public File getFolderIndexFile() {
+        return folderIndexFile;
+    }
+
+    public boolean isContentDeduplicationEnabled() {
+        return contentDeduplication;
+    }
+
+    public int getMaxIndexedContents() {
+        return maxIndexedContents;
+    }
+
+    public File getContentCacheDirectory() {
+        return contentCacheDirectory;
+    }
+
+    public long getContentCacheSize() {
+        return contentCacheSize;
+    }
+
+    public Set<String> getCompressedMimeTypes() {
+        return compressedMimeTypes;
+    }
+
+    public File getUploadDirectory() {
+        return uploadDirectory;
+    }
+
+    public long getUploadExpiry() {
+        return uploadExpiry;
+    }
+
+    public OperationContext getOperationContext(final OperationContextProfile profile) {
+        final OperationContext operationContext = operationContexts.get(profile);
+        if (operationContext == null) {
+            return profile.createDefaultContext();
+        }
+        return operationContext;
+    }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * Counters of the call to the document manager running on the current thread. They exist only while a
+ * {@link MeteredDocumentationManager} measures a call, otherwise counting is a no-op.
+ *
+ */
+final class CallStatistics {
+
+    private static final ThreadLocal<CallStatistics> CURRENT = new ThreadLocal<CallStatistics>();
+
+    int                                              roundTrips;
+    long                                             bytesUploaded;
+    long                                             bytesDownloaded;
+    int                                              cacheHits;
+    int                                              cacheMisses;
+
+    private CallStatistics() {
+    }
+
+    /**
+     * Start counting for the current thread
+     * 
+     * @return the counters or null if a call is already measured on this thread
+     */
+    static CallStatistics begin() {
+        if (CURRENT.get() != null) {
+            return null;
+        }
+        final CallStatistics statistics = new CallStatistics();
+        CURRENT.set(statistics);
+        return statistics;
+    }
+
+    static void end() {
+        CURRENT.remove();
+    }
+
+    static void roundTrip() {
+        final CallStatistics statistics = CURRENT.get();
+        if (statistics != null) {
+            statistics.roundTrips++;
+        }
+    }
+
+    static void downloaded(final long bytes) {
+        final CallStatistics statistics = CURRENT.get();
+        if (statistics != null) {
+            statistics.bytesDownloaded += bytes;
+        }
+    }
+
+    static void cacheAccess(final boolean hit) {
+        final CallStatistics statistics = CURRENT.get();
+        if (statistics != null) {
+            if (hit) {
+                statistics.cacheHits++;
+            } else {
+                statistics.cacheMisses++;
+            }
+        }
+    }
+
+    /**
+     * @return a stream counting the bytes read from the content as uploaded, or the content itself if nothing is
+     *         measured
+     */
+    static InputStream countUpload(final InputStream content) {
+        final CallStatistics statistics = CURRENT.get();
+        if (statistics == null || content == null) {
+            return content;
+        }
+        return new FilterInputStream(content) {
+
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b != -1) {
+                    statistics.bytesUploaded++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                final int n = super.read(b, off, len);
+                if (n > 0) {
+                    statistics.bytesUploaded += n;
+                }
+                return n;
+            }
+        };
+    }
+
+}
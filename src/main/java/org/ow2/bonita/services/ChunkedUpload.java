@@ -0,0 +1,315 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.ow2.bonita.DocumentationCreationException;
+import org.ow2.bonita.facade.uuid.ProcessDefinitionUUID;
+import org.ow2.bonita.facade.uuid.ProcessInstanceUUID;
+
+/**
+ *
+ * Content of a document or of a new version sent in several chunks.
+ *
+ * Chunks are written to a spool file and flushed to disk before they are acknowledged, the content is sent to the
+ * repository as a single stream by {@link #complete()}. CMIS 1.0 can't append to a content stream, the spool file is what
+ * makes the upload resumable: after a failure the caller asks for {@link #getAcknowledgedLength()} and continues from
+ * there, even after a restart if it kept the {@link #getId() id}. The acknowledged length is saved with the description
+ * of the upload after each chunk, bytes written after it by an interrupted chunk are dropped. Only one chunk is held in
+ * memory.
+ *
+ */
+public class ChunkedUpload {
+
+    private static final String       DATA_SUFFIX        = ".data";
+    private static final String       DESCRIPTION_SUFFIX = ".upload";
+    private static final String       TEMPORARY_SUFFIX   = ".tmp";
+    private static final String       ACKNOWLEDGED       = "acknowledged";
+
+    private final String              id;
+    private final File                dataFile;
+    private final File                descriptionFile;
+    private final Properties          description;
+    private final CMISDocumentManager manager;
+    private long                      acknowledgedLength;
+    private boolean                   ended;
+
+    private ChunkedUpload(final String id, final File directory, final Properties description,
+            final CMISDocumentManager manager) {
+        this.id = id;
+        this.dataFile = new File(directory, id + DATA_SUFFIX);
+        this.descriptionFile = new File(directory, id + DESCRIPTION_SUFFIX);
+        this.description = description;
+        this.manager = manager;
+        this.acknowledgedLength = Long.parseLong(description.getProperty(ACKNOWLEDGED, "0"));
+    }
+
+    static ChunkedUpload forDocument(final CMISDocumentManager manager, final File directory, final String name,
+            final ProcessDefinitionUUID definitionUUID, final ProcessInstanceUUID instanceUUID, final String fileName,
+            final String mimeType) throws IOException {
+        final Properties description = new Properties();
+        description.setProperty("name", name);
+        description.setProperty("definition", definitionUUID.getValue());
+        if (instanceUUID != null) {
+            description.setProperty("instance", instanceUUID.getValue());
+        }
+        return create(manager, directory, description, fileName, mimeType);
+    }
+
+    static ChunkedUpload forVersion(final CMISDocumentManager manager, final File directory, final String documentId,
+            final boolean isMajorVersion, final String fileName, final String mimeType) throws IOException {
+        final Properties description = new Properties();
+        description.setProperty("document", documentId);
+        description.setProperty("major", String.valueOf(isMajorVersion));
+        return create(manager, directory, description, fileName, mimeType);
+    }
+
+    private static ChunkedUpload create(final CMISDocumentManager manager, final File directory,
+            final Properties description, final String fileName, final String mimeType) throws IOException {
+        if (fileName != null) {
+            description.setProperty("fileName", fileName);
+        }
+        if (mimeType != null) {
+            description.setProperty("mimeType", mimeType);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create the upload directory " + directory);
+        }
+        description.setProperty(ACKNOWLEDGED, "0");
+        final ChunkedUpload upload = new ChunkedUpload(UUID.randomUUID().toString(), directory, description, manager);
+        new FileOutputStream(upload.dataFile).close();
+        upload.saveDescription();
+        return upload;
+    }
+
+    /**
+     * @return true if the id can be the one of an upload: only ids made by {@link UUID} are accepted, they are used in file
+     *         names
+     */
+    static boolean isUploadId(final String id) {
+        if (id == null) {
+            return false;
+        }
+        try {
+            return UUID.fromString(id).toString().equals(id);
+        } catch (final IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the upload left in the directory by a previous run or null if there is none with this id
+     */
+    static ChunkedUpload load(final CMISDocumentManager manager, final File directory, final String id) throws IOException {
+        if (!isUploadId(id)) {
+            return null;
+        }
+        final File descriptionFile = new File(directory, id + DESCRIPTION_SUFFIX);
+        if (!descriptionFile.isFile()) {
+            return null;
+        }
+        final Properties description = new Properties();
+        final InputStream input = new FileInputStream(descriptionFile);
+        try {
+            description.load(input);
+        } finally {
+            input.close();
+        }
+        final ChunkedUpload upload = new ChunkedUpload(id, directory, description, manager);
+        // drop what an interrupted chunk wrote after the acknowledged length
+        final RandomAccessFile file = new RandomAccessFile(upload.dataFile, "rw");
+        try {
+            if (file.length() < upload.acknowledgedLength) {
+                throw new IOException("The data of the upload " + id + " are shorter than acknowledged");
+            }
+            file.setLength(upload.acknowledgedLength);
+        } finally {
+            file.close();
+        }
+        return upload;
+    }
+
+    /**
+     * @return the ids of the uploads of the directory that received nothing since the given time
+     */
+    static List<String> findExpired(final File directory, final long lastModifiedBefore) {
+        final List<String> ids = new ArrayList<String>();
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return ids;
+        }
+        for (final File file : files) {
+            final String name = file.getName();
+            final int end = name.indexOf('.');
+            if (end < 0 || !isUploadId(name.substring(0, end)) || file.lastModified() >= lastModifiedBefore) {
+                continue;
+            }
+            final String id = name.substring(0, end);
+            // the description is written after each chunk, only a description or a file left without one are looked at
+            if (name.equals(id + DESCRIPTION_SUFFIX) || !new File(directory, id + DESCRIPTION_SUFFIX).exists()) {
+                if (!ids.contains(id)) {
+                    ids.add(id);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Delete the files of an upload that is not loaded
+     */
+    static void delete(final File directory, final String id) {
+        new File(directory, id + DATA_SUFFIX).delete();
+        new File(directory, id + DESCRIPTION_SUFFIX).delete();
+        new File(directory, id + DESCRIPTION_SUFFIX + TEMPORARY_SUFFIX).delete();
+    }
+
+    /**
+     * Write the description to a temporary file synced to disk and rename it, a crash leaves the previous one
+     */
+    private void saveDescription() throws IOException {
+        final File temporaryFile = new File(descriptionFile.getPath() + TEMPORARY_SUFFIX);
+        final FileOutputStream output = new FileOutputStream(temporaryFile);
+        try {
+            description.store(output, null);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!temporaryFile.renameTo(descriptionFile)) {
+            // some platforms can't rename over an existing file
+            descriptionFile.delete();
+            if (!temporaryFile.renameTo(descriptionFile)) {
+                throw new IOException("Can't replace " + descriptionFile);
+            }
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the number of bytes received and written to disk, the next chunk must start there
+     */
+    public synchronized long getAcknowledgedLength() {
+        return acknowledgedLength;
+    }
+
+    /**
+     * Same as {@link #append(long, byte[], int, int)} for the whole array
+     */
+    public long append(final long offset, final byte[] chunk) throws IOException {
+        return append(offset, chunk, 0, chunk.length);
+    }
+
+    /**
+     * Add a chunk to the content. A chunk that was already acknowledged is ignored so that a chunk sent again after a lost
+     * answer does no harm.
+     * 
+     * @param offset
+     *            position of the chunk in the content
+     * @return the acknowledged length after this chunk
+     * @throws IllegalStateException
+     *             if the chunk would leave a gap or the upload is completed or aborted
+     */
+    public synchronized long append(final long offset, final byte[] chunk, final int off, final int len)
+            throws IOException {
+        checkNotEnded();
+        if (offset + len <= acknowledgedLength) {
+            return acknowledgedLength;
+        }
+        if (offset > acknowledgedLength) {
+            throw new IllegalStateException("Upload " + id + " expects a chunk starting at " + acknowledgedLength
+                    + ", not at " + offset);
+        }
+        final RandomAccessFile file = new RandomAccessFile(dataFile, "rw");
+        try {
+            file.seek(offset);
+            file.write(chunk, off, len);
+            file.getChannel().force(false);
+        } finally {
+            file.close();
+        }
+        description.setProperty(ACKNOWLEDGED, String.valueOf(offset + len));
+        saveDescription();
+        acknowledgedLength = offset + len;
+        return acknowledgedLength;
+    }
+
+    /**
+     * Send the content to the repository. If it fails the upload stays open: chunks can still be added and complete can be
+     * called again.
+     * 
+     * @return the created document or version
+     */
+    public synchronized Document complete() throws DocumentationCreationException, IOException {
+        checkNotEnded();
+        final InputStream content = new FileInputStream(dataFile);
+        final Document document;
+        try {
+            final String fileName = description.getProperty("fileName");
+            final String mimeType = description.getProperty("mimeType");
+            final String documentId = description.getProperty("document");
+            if (documentId != null) {
+                document = manager.createVersion(documentId, Boolean.valueOf(description.getProperty("major")), fileName,
+                        mimeType, content, acknowledgedLength);
+            } else {
+                final String instance = description.getProperty("instance");
+                document = manager.createDocument(description.getProperty("name"), new ProcessDefinitionUUID(description
+                        .getProperty("definition")), instance != null ? new ProcessInstanceUUID(instance) : null, fileName,
+                        mimeType, content, acknowledgedLength);
+            }
+        } finally {
+            content.close();
+        }
+        end();
+        return document;
+    }
+
+    /**
+     * Forget the upload and delete what was received
+     */
+    public synchronized void abort() {
+        if (!ended) {
+            end();
+        }
+    }
+
+    private void end() {
+        ended = true;
+        delete(dataFile.getParentFile(), id);
+        manager.uploadEnded(id);
+    }
+
+    private void checkNotEnded() {
+        if (ended) {
+            throw new IllegalStateException("Upload " + id + " is already completed or aborted");
+        }
+    }
+
+}
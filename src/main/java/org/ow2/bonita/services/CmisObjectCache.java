@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.client.api.CmisObject;
+import org.apache.chemistry.opencmis.client.api.Document;
+import org.apache.chemistry.opencmis.client.api.Folder;
+import org.apache.chemistry.opencmis.client.api.Session;
+
+/**
+ *
+ * Bounded cache of CMIS objects with a time to live, documents and folders have their own size limit.
+ *
+ * Objects are bound to the session that fetched them, an object is only returned to the same session so that users
+ * never see objects read with the rights of someone else.
+ *
+ */
+class CmisObjectCache {
+
+    private final Segment    documents;
+    private final Segment    folders;
+    private final long       timeToLive;
+
+    /**
+     * @param maxDocuments
+     *            maximum number of documents kept
+     * @param maxFolders
+     *            maximum number of folders kept
+     * @param timeToLive
+     *            time in milliseconds an object stays valid, 0 or less means until evicted
+     */
+    CmisObjectCache(final int maxDocuments, final int maxFolders, final long timeToLive) {
+        this.documents = new Segment(maxDocuments);
+        this.folders = new Segment(maxFolders);
+        this.timeToLive = timeToLive;
+    }
+
+    CmisObject get(final Session session, final String id) {
+        CmisObject object = documents.get(session, id);
+        if (object == null) {
+            object = folders.get(session, id);
+        }
+        return object;
+    }
+
+    void put(final Session session, final CmisObject object) {
+        final long expiration = timeToLive > 0 ? System.currentTimeMillis() + timeToLive : Long.MAX_VALUE;
+        final CachedObject cachedObject = new CachedObject(session, object, expiration);
+        if (object instanceof Document) {
+            documents.put(object.getId(), cachedObject);
+        } else if (object instanceof Folder) {
+            folders.put(object.getId(), cachedObject);
+        }
+    }
+
+    /**
+     * Remove the object and, if it is a cached document, all the cached versions of its version series
+     */
+    void invalidate(final String id) {
+        final CachedObject removed = documents.remove(id);
+        if (removed != null) {
+            invalidateVersionSeries(((Document) removed.object).getVersionSeriesId());
+        }
+        folders.remove(id);
+    }
+
+    void invalidateVersionSeries(final String versionSeriesId) {
+        if (versionSeriesId == null) {
+            return;
+        }
+        synchronized (documents) {
+            for (final Iterator<CachedObject> iterator = documents.values().iterator(); iterator.hasNext();) {
+                if (versionSeriesId.equals(((Document) iterator.next().object).getVersionSeriesId())) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    void clear() {
+        documents.clear();
+        folders.clear();
+    }
+
+    private static final class CachedObject {
+
+        private final Session    session;
+        private final CmisObject object;
+        private final long       expiration;
+
+        CachedObject(final Session session, final CmisObject object, final long expiration) {
+            this.session = session;
+            this.object = object;
+            this.expiration = expiration;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<String, CachedObject> {
+
+        private static final long serialVersionUID = -2785436197563981946L;
+        private final int         maxSize;
+
+        Segment(final int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        synchronized CmisObject get(final Session session, final String id) {
+            final CachedObject cachedObject = super.get(id);
+            if (cachedObject == null) {
+                return null;
+            }
+            if (cachedObject.expiration < System.currentTimeMillis()) {
+                super.remove(id);
+                return null;
+            }
+            if (cachedObject.session != session) {
+                return null;
+            }
+            return cachedObject.object;
+        }
+
+        @Override
+        public synchronized CachedObject put(final String key, final CachedObject value) {
+            return super.put(key, value);
+        }
+
+        @Override
+        public synchronized CachedObject remove(final Object key) {
+            return super.remove(key);
+        }
+
+        @Override
+        public synchronized void clear() {
+            super.clear();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, CachedObject> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+}
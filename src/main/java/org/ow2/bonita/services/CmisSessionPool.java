@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.chemistry.opencmis.client.api.Session;
+
+/**
+ *
+ * Pool of CMIS sessions indexed by user.
+ *
+ * Lookups of an already opened session do not take any lock. A user can own several sessions that are handed out in
+ * round robin. When more than maxUsers users are pooled, idle users and then the least recently used one are evicted.
+ *
+ */
+public abstract class CmisSessionPool {
+
+    private final ConcurrentMap<String, UserSessions> sessions = new ConcurrentHashMap<String, UserSessions>();
+    private final int                                 maxUsers;
+    private final long                                maxIdleTime;
+    private final int                                 sessionsPerUser;
+
+    /**
+     * @param maxUsers
+     *            maximum number of users having sessions in the pool
+     * @param maxIdleTime
+     *            time in milliseconds after which sessions of a user that did not use them can be evicted, 0 or less means
+     *            never
+     * @param sessionsPerUser
+     *            number of sessions opened for one user
+     */
+    public CmisSessionPool(final int maxUsers, final long maxIdleTime, final int sessionsPerUser) {
+        if (maxUsers < 1 || sessionsPerUser < 1) {
+            throw new IllegalArgumentException("maxUsers and sessionsPerUser must be greater than 0");
+        }
+        this.maxUsers = maxUsers;
+        this.maxIdleTime = maxIdleTime;
+        this.sessionsPerUser = sessionsPerUser;
+    }
+
+    /**
+     * Opens a new session for the given user, called at most once per pooled slot
+     */
+    protected abstract Session createSession(String userId);
+
+    public Session getSession(final String userId) {
+        UserSessions userSessions = sessions.get(userId);
+        if (userSessions == null) {
+            final UserSessions newUserSessions = new UserSessions(userId, sessionsPerUser);
+            userSessions = sessions.putIfAbsent(userId, newUserSessions);
+            if (userSessions == null) {
+                userSessions = newUserSessions;
+                evict();
+            }
+        }
+        return userSessions.next();
+    }
+
+    public void clear() {
+        sessions.clear();
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    private void evict() {
+        if (sessions.size() <= maxUsers) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        UserSessions leastRecentlyUsed = null;
+        for (final Iterator<Entry<String, UserSessions>> iterator = sessions.entrySet().iterator(); iterator.hasNext();) {
+            final UserSessions userSessions = iterator.next().getValue();
+            if (maxIdleTime > 0 && now - userSessions.lastAccess > maxIdleTime) {
+                iterator.remove();
+            } else if (leastRecentlyUsed == null || userSessions.lastAccess < leastRecentlyUsed.lastAccess) {
+                leastRecentlyUsed = userSessions;
+            }
+        }
+        while (sessions.size() > maxUsers && leastRecentlyUsed != null) {
+            sessions.remove(leastRecentlyUsed.userId, leastRecentlyUsed);
+            leastRecentlyUsed = null;
+            for (final UserSessions userSessions : sessions.values()) {
+                if (leastRecentlyUsed == null || userSessions.lastAccess < leastRecentlyUsed.lastAccess) {
+                    leastRecentlyUsed = userSessions;
+                }
+            }
+        }
+    }
+
+    private final class UserSessions {
+
+        private final String                       userId;
+        private final AtomicReferenceArray<Session> slots;
+        private final AtomicInteger                 counter = new AtomicInteger();
+        private volatile long                       lastAccess;
+
+        UserSessions(final String userId, final int size) {
+            this.userId = userId;
+            this.slots = new AtomicReferenceArray<Session>(size);
+            this.lastAccess = System.currentTimeMillis();
+        }
+
+        Session next() {
+            lastAccess = System.currentTimeMillis();
+            final int index = (counter.getAndIncrement() & Integer.MAX_VALUE) % slots.length();
+            final Session session = slots.get(index);
+            if (session != null) {
+                return session;
+            }
+            synchronized (this) {
+                Session created = slots.get(index);
+                if (created == null) {
+                    created = createSession(userId);
+                    slots.set(index, created);
+                }
+                return created;
+            }
+        }
+    }
+
+}
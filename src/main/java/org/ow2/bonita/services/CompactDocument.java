@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.util.Date;
+
+import org.ow2.bonita.facade.uuid.ProcessDefinitionUUID;
+import org.ow2.bonita.facade.uuid.ProcessInstanceUUID;
+
+/**
+ *
+ * {@link Document} returned by the {@link CMISDocumentManager}, built to keep large listings small.
+ *
+ * Dates are kept as epoch milliseconds, the flags in a single byte and the process UUIDs as their value, the
+ * {@link Date} and UUID objects are created when they are asked for. Only the id can be changed.
+ *
+ */
+public final class CompactDocument implements Document {
+
+    private static final long   NO_DATE         = Long.MIN_VALUE;
+    private static final byte   LATEST_VERSION  = 1;
+    private static final byte   MAJOR_VERSION   = 2;
+    private static final byte   ENCODED_CONTENT = 4;
+
+    private String              id;
+    private final String        name;
+    private final String        folderId;
+    private final String        author;
+    private final long          creationDate;
+    private final long          lastModificationDate;
+    private final byte          flags;
+    private final String        versionLabel;
+    private final String        versionSeriesId;
+    private final String        contentMimeType;
+    private final String        contentFileName;
+    private final long          contentSize;
+    private final String        processDefinitionUUID;
+    private final String        processInstanceUUID;
+
+    /**
+     * @param creationDate
+     *            epoch milliseconds, {@link Long#MIN_VALUE} if unknown
+     * @param lastModificationDate
+     *            epoch milliseconds, {@link Long#MIN_VALUE} if unknown
+     * @param processDefinitionUUID
+     *            value of the process definition UUID or null
+     * @param processInstanceUUID
+     *            value of the process instance UUID or null
+     */
+    public CompactDocument(final String id, final String name, final String folderId, final String author,
+            final long creationDate, final long lastModificationDate, final boolean latestVersion,
+            final boolean majorVersion, final String versionLabel, final String versionSeriesId,
+            final String contentFileName, final String contentMimeType, final long contentSize,
+            final String processDefinitionUUID, final String processInstanceUUID) {
+        this(id, name, folderId, author, creationDate, lastModificationDate, latestVersion, majorVersion, versionLabel,
+                versionSeriesId, contentFileName, contentMimeType, contentSize, processDefinitionUUID, processInstanceUUID,
+                false);
+    }
+
+    /**
+     * @param encodedContent
+     *            true if the content is stored compressed, see {@link ContentCodec}
+     */
+    CompactDocument(final String id, final String name, final String folderId, final String author,
+            final long creationDate, final long lastModificationDate, final boolean latestVersion,
+            final boolean majorVersion, final String versionLabel, final String versionSeriesId,
+            final String contentFileName, final String contentMimeType, final long contentSize,
+            final String processDefinitionUUID, final String processInstanceUUID, final boolean encodedContent) {
+        this.id = id;
+        this.name = name;
+        this.folderId = folderId;
+        this.author = author;
+        this.creationDate = creationDate;
+        this.lastModificationDate = lastModificationDate;
+        this.flags = (byte) ((latestVersion ? LATEST_VERSION : 0) | (majorVersion ? MAJOR_VERSION : 0) | (encodedContent ? ENCODED_CONTENT
+                : 0));
+        this.versionLabel = versionLabel;
+        this.versionSeriesId = versionSeriesId;
+        this.contentFileName = contentFileName;
+        this.contentMimeType = contentMimeType;
+        this.contentSize = contentSize;
+        this.processDefinitionUUID = processDefinitionUUID;
+        this.processInstanceUUID = processInstanceUUID;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(final String id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getParentFolderId() {
+        return folderId;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public Date getCreationDate() {
+        return toDate(creationDate);
+    }
+
+    /**
+     * @return the author, the repository does not tell who modified a version
+     */
+    public String getLastModifiedBy() {
+        return author;
+    }
+
+    public Date getLastModificationDate() {
+        return toDate(lastModificationDate);
+    }
+
+    public boolean isLatestVersion() {
+        return (flags & LATEST_VERSION) != 0;
+    }
+
+    public boolean isMajorVersion() {
+        return (flags & MAJOR_VERSION) != 0;
+    }
+
+    boolean isContentEncoded() {
+        return (flags & ENCODED_CONTENT) != 0;
+    }
+
+    public String getVersionLabel() {
+        return versionLabel;
+    }
+
+    public String getVersionSeriesId() {
+        return versionSeriesId;
+    }
+
+    public String getContentMimeType() {
+        return contentMimeType;
+    }
+
+    public String getContentFileName() {
+        return contentFileName;
+    }
+
+    public long getContentSize() {
+        return contentSize;
+    }
+
+    public ProcessInstanceUUID getProcessInstanceUUID() {
+        return processInstanceUUID != null ? new ProcessInstanceUUID(processInstanceUUID) : null;
+    }
+
+    public ProcessDefinitionUUID getProcessDefinitionUUID() {
+        return processDefinitionUUID != null ? new ProcessDefinitionUUID(processDefinitionUUID) : null;
+    }
+
+    private static Date toDate(final long time) {
+        return time != NO_DATE ? new Date(time) : null;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + hashOf(author);
+        result = prime * result + hashOf(contentFileName);
+        result = prime * result + hashOf(contentMimeType);
+        result = prime * result + (int) (contentSize ^ (contentSize >>> 32));
+        result = prime * result + (int) (creationDate ^ (creationDate >>> 32));
+        result = prime * result + hashOf(folderId);
+        result = prime * result + hashOf(id);
+        result = prime * result + (int) (lastModificationDate ^ (lastModificationDate >>> 32));
+        result = prime * result + flags;
+        result = prime * result + hashOf(name);
+        result = prime * result + hashOf(versionLabel);
+        result = prime * result + hashOf(versionSeriesId);
+        return result;
+    }
+
+    private static int hashOf(final String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final CompactDocument other = (CompactDocument) obj;
+        return contentSize == other.contentSize && creationDate == other.creationDate
+                && lastModificationDate == other.lastModificationDate && flags == other.flags && same(id, other.id)
+                && same(name, other.name) && same(folderId, other.folderId) && same(author, other.author)
+                && same(versionLabel, other.versionLabel) && same(versionSeriesId, other.versionSeriesId)
+                && same(contentFileName, other.contentFileName) && same(contentMimeType, other.contentMimeType);
+    }
+
+    private static boolean same(final String a, final String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
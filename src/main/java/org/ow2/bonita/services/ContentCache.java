@@ -0,0 +1,433 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.chemistry.opencmis.client.api.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Contents of documents kept in a directory, bounded by a number of bytes and evicted least recently used first.
+ *
+ * An entry is keyed by the document id and its change token (or its version label and modification date when the
+ * repository has no change tokens): a modified document gets a new key and its old entry is never served again. Files are
+ * written to a temporary file and renamed once complete, they are found again after a restart.
+ *
+ * Each file starts with its key: an int giving the length of the UTF-8 key followed by the key, the content follows.
+ *
+ */
+class ContentCache {
+
+    private static final Logger                LOGGER      = LoggerFactory.getLogger(ContentCache.class);
+    private static final String                SUFFIX      = ".content";
+    private static final String                TEMP_SUFFIX = ".tmp";
+    private static final String                CHARSET     = "UTF-8";
+
+    private final File                         directory;
+    private final long                         maxBytes;
+    private final LinkedHashMap<String, Entry> entries     = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long                               size;
+
+    /**
+     * @param directory
+     *            the directory of the files, created if it does not exist
+     * @param maxBytes
+     *            maximum total size of the files
+     */
+    ContentCache(final File directory, final long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Can't create the content cache directory " + directory);
+        }
+        load();
+    }
+
+    static String key(final Document document) {
+        String version = document.getChangeToken();
+        if (version == null) {
+            final GregorianCalendar modification = document.getLastModificationDate();
+            version = document.getVersionLabel() + "@" + (modification != null ? modification.getTimeInMillis() : 0);
+        }
+        return document.getId() + "\n" + version;
+    }
+
+    /**
+     * @return a stream on the cached content or null if it is not cached
+     */
+    InputStream open(final String key) {
+        return open(key, 0);
+    }
+
+    /**
+     * @param skip
+     *            number of bytes of the content to skip
+     * @return a stream on the cached content starting after the skipped bytes or null if it is not cached
+     */
+    InputStream open(final String key, final long skip) {
+        final Entry entry = touch(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            final FileInputStream input = new FileInputStream(entry.file);
+            input.getChannel().position(entry.offset + skip);
+            return input;
+        } catch (final IOException e) {
+            remove(key, entry);
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of bytes transferred or -1 if the content is not cached
+     */
+    long transferTo(final String key, final WritableByteChannel target) throws IOException {
+        final Entry entry = touch(key);
+        if (entry == null) {
+            return -1;
+        }
+        final FileInputStream input;
+        try {
+            input = new FileInputStream(entry.file);
+        } catch (final FileNotFoundException e) {
+            remove(key, entry);
+            return -1;
+        }
+        try {
+            final FileChannel channel = input.getChannel();
+            final long length = channel.size() - entry.offset;
+            long position = entry.offset;
+            long remaining = length;
+            while (remaining > 0) {
+                final long transferred = channel.transferTo(position, remaining, target);
+                if (transferred <= 0) {
+                    throw new IOException("Can't transfer the content of " + entry.documentId);
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+            return length;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Wrap a content read from the repository so that it is stored while it is read. It is only kept if it is read until
+     * its end, the caller must close the returned stream.
+     * 
+     * @param contentLength
+     *            the length of the content or -1 if unknown
+     */
+    InputStream store(final String key, final String documentId, final InputStream content, final long contentLength) {
+        if (contentLength > maxBytes) {
+            return content;
+        }
+        try {
+            final File temp = File.createTempFile("content", TEMP_SUFFIX, directory);
+            return new StoringInputStream(content, key, documentId, temp);
+        } catch (final IOException e) {
+            LOGGER.warn("Can't cache the content of " + documentId, e);
+            return content;
+        }
+    }
+
+    /**
+     * Remove all the cached contents of a document
+     */
+    void remove(final String documentId) {
+        synchronized (entries) {
+            for (final Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+                final Entry entry = iterator.next();
+                if (entry.documentId.equals(documentId)) {
+                    iterator.remove();
+                    delete(entry);
+                }
+            }
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            for (final Entry entry : entries.values()) {
+                delete(entry);
+            }
+            entries.clear();
+        }
+    }
+
+    private Entry touch(final String key) {
+        final Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            // keeps the order of use for the next restart
+            entry.file.setLastModified(System.currentTimeMillis());
+        }
+        return entry;
+    }
+
+    private void remove(final String key, final Entry entry) {
+        synchronized (entries) {
+            if (entries.get(key) == entry) {
+                entries.remove(key);
+                delete(entry);
+            }
+        }
+    }
+
+    private void add(final String key, final Entry entry) {
+        synchronized (entries) {
+            final Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                size -= previous.length;
+            }
+            size += entry.length;
+            final Iterator<Entry> iterator = entries.values().iterator();
+            while (size > maxBytes && iterator.hasNext()) {
+                final Entry eldest = iterator.next();
+                iterator.remove();
+                delete(eldest);
+            }
+        }
+    }
+
+    /**
+     * must be called holding the lock of the entries
+     */
+    private void delete(final Entry entry) {
+        size -= entry.length;
+        if (!entry.file.delete() && entry.file.exists()) {
+            LOGGER.warn("Can't delete the cached content " + entry.file);
+        }
+    }
+
+    private void load() {
+        final File[] files = directory.listFiles(new FileFilter() {
+
+            public boolean accept(final File file) {
+                return file.getName().endsWith(SUFFIX) || file.getName().endsWith(TEMP_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+
+            public int compare(final File f1, final File f2) {
+                final long m1 = f1.lastModified();
+                final long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : m1 == m2 ? 0 : 1;
+            }
+        });
+        for (final File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // interrupted while it was written
+                file.delete();
+                continue;
+            }
+            try {
+                final DataInputStream input = new DataInputStream(new FileInputStream(file));
+                try {
+                    final byte[] key = new byte[input.readInt()];
+                    input.readFully(key);
+                    final String keyString = new String(key, CHARSET);
+                    add(keyString, new Entry(file, keyString.substring(0, keyString.indexOf('\n')), 4 + key.length, file
+                            .length()));
+                } finally {
+                    input.close();
+                }
+            } catch (final Exception e) {
+                LOGGER.warn("Removing the unreadable cached content " + file, e);
+                file.delete();
+            }
+        }
+    }
+
+    private File fileOf(final String key) throws IOException {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(CHARSET));
+            return new File(directory, String.format("%064x", new BigInteger(1, hash)) + SUFFIX);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available");
+        }
+    }
+
+    private static final class Entry {
+
+        private final File   file;
+        private final String documentId;
+        private final long   offset;
+        private final long   length;
+
+        Entry(final File file, final String documentId, final long offset, final long length) {
+            this.file = file;
+            this.documentId = documentId;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Copy what is read to the temporary file, renamed to the file of the key when the end of the content is reached
+     */
+    private final class StoringInputStream extends FilterInputStream {
+
+        private final String key;
+        private final String documentId;
+        private final File   temp;
+        private OutputStream output;
+        private long         offset;
+        private boolean      committed;
+
+        StoringInputStream(final InputStream in, final String key, final String documentId, final File temp)
+                throws IOException {
+            super(in);
+            this.key = key;
+            this.documentId = documentId;
+            this.temp = temp;
+            final byte[] keyBytes = key.getBytes(CHARSET);
+            this.output = new FileOutputStream(temp);
+            try {
+                output.write(new byte[] { (byte) (keyBytes.length >>> 24), (byte) (keyBytes.length >>> 16),
+                        (byte) (keyBytes.length >>> 8), (byte) keyBytes.length });
+                output.write(keyBytes);
+            } catch (final IOException e) {
+                discard();
+                throw e;
+            }
+            this.offset = 4 + keyBytes.length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b == -1) {
+                commit();
+            } else if (output != null) {
+                try {
+                    output.write(b);
+                } catch (final IOException e) {
+                    failed(e);
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read == -1) {
+                commit();
+            } else if (output != null) {
+                try {
+                    output.write(b, off, read);
+                } catch (final IOException e) {
+                    failed(e);
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // the skipped bytes would be missing from the cached content
+            discard();
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                discard();
+            }
+        }
+
+        private void commit() {
+            if (output == null) {
+                return;
+            }
+            try {
+                output.close();
+                output = null;
+                final File file = fileOf(key);
+                if (!temp.renameTo(file)) {
+                    // an older copy of the same key may be in the way
+                    file.delete();
+                    if (!temp.renameTo(file)) {
+                        throw new IOException("Can't rename " + temp + " to " + file);
+                    }
+                }
+                committed = true;
+                add(key, new Entry(file, documentId, offset, file.length()));
+            } catch (final IOException e) {
+                failed(e);
+            }
+        }
+
+        private void failed(final IOException e) {
+            LOGGER.warn("Can't cache the content of " + documentId, e);
+            discard();
+        }
+
+        private void discard() {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (final IOException e) {
+                    // nothing more to do
+                }
+                output = null;
+            }
+            if (!committed) {
+                temp.delete();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ *
+ * Compression of the contents stored in the repository.
+ *
+ * A compressed content keeps its mime type with two more parameters: the codec and, when it is known, the length of the
+ * uncompressed content, e.g. <code>text/xml; x-bonita-codec=deflate; x-bonita-length=52731</code>. Reading only relies on
+ * these parameters so every manager reads compressed contents, whether it compresses new ones or not.
+ *
+ */
+class ContentCodec {
+
+    static final String         CODEC_PARAMETER  = "x-bonita-codec";
+    static final String         LENGTH_PARAMETER = "x-bonita-length";
+    private static final String DEFLATE          = "deflate";
+    /**
+     * smaller contents gain too little to be worth it
+     */
+    private static final long   MIN_LENGTH       = 1024;
+
+    private final List<String>  mimeTypes;
+
+    /**
+     * @param mimeTypes
+     *            mime types to compress, either complete (<code>application/json</code>) or a whole type
+     *            (<code>text/*</code>)
+     */
+    ContentCodec(final Collection<String> mimeTypes) {
+        this.mimeTypes = new ArrayList<String>();
+        for (final String mimeType : mimeTypes) {
+            this.mimeTypes.add(mimeType.toLowerCase());
+        }
+    }
+
+    boolean compresses(final String mimeType, final long contentLength) {
+        if (mimeType == null || contentLength == 0 || contentLength > 0 && contentLength < MIN_LENGTH) {
+            return false;
+        }
+        String baseType = mimeType.toLowerCase();
+        final int parameters = baseType.indexOf(';');
+        if (parameters >= 0) {
+            baseType = baseType.substring(0, parameters);
+        }
+        baseType = baseType.trim();
+        for (final String accepted : mimeTypes) {
+            if (accepted.endsWith("/*") ? baseType.startsWith(accepted.substring(0, accepted.length() - 1)) : baseType
+                    .equals(accepted)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param contentLength
+     *            the length of the content or -1 if unknown
+     */
+    Encoding encode(final InputStream content, final String mimeType, final long contentLength) {
+        return new Encoding(content, mimeType + "; " + CODEC_PARAMETER + "=" + DEFLATE
+                + (contentLength >= 0 ? "; " + LENGTH_PARAMETER + "=" + contentLength : ""));
+    }
+
+    static boolean isEncoded(final String storedMimeType) {
+        return storedMimeType != null && storedMimeType.indexOf(CODEC_PARAMETER) >= 0;
+    }
+
+    /**
+     * @return the mime type given when the content was stored
+     */
+    static String baseMimeType(final String storedMimeType) {
+        if (!isEncoded(storedMimeType)) {
+            return storedMimeType;
+        }
+        final int end = storedMimeType.lastIndexOf(';', storedMimeType.indexOf(CODEC_PARAMETER));
+        return end >= 0 ? storedMimeType.substring(0, end).trim() : storedMimeType;
+    }
+
+    /**
+     * @return the length of the content before compression if it is known, the stored length otherwise
+     */
+    static long originalLength(final String storedMimeType, final long storedLength) {
+        if (!isEncoded(storedMimeType)) {
+            return storedLength;
+        }
+        final int start = storedMimeType.indexOf(LENGTH_PARAMETER + "=");
+        if (start < 0) {
+            return storedLength;
+        }
+        int end = storedMimeType.indexOf(';', start);
+        if (end < 0) {
+            end = storedMimeType.length();
+        }
+        try {
+            return Long.parseLong(storedMimeType.substring(start + LENGTH_PARAMETER.length() + 1, end).trim());
+        } catch (final NumberFormatException e) {
+            return storedLength;
+        }
+    }
+
+    /**
+     * @return the stream uncompressing the content if it is compressed, the stream itself otherwise
+     */
+    static InputStream decode(final String storedMimeType, final InputStream content) {
+        if (content == null || !isEncoded(storedMimeType)) {
+            return content;
+        }
+        return new DecodingInputStream(content, originalLength(storedMimeType, -1));
+    }
+
+    /**
+     * Inflates a content and reads the compressed stream up to its end once the content is complete: the inflater stops
+     * at the end of the deflate data, so a wrapped stream storing what it reads (see {@link ContentCache}) would never
+     * see the end of the content otherwise.
+     */
+    private static final class DecodingInputStream extends InflaterInputStream {
+
+        private final long originalLength;
+        private long       inflated;
+        private boolean    drained;
+
+        /**
+         * @param originalLength
+         *            the length of the uncompressed content or -1 if unknown
+         */
+        DecodingInputStream(final InputStream content, final long originalLength) {
+            super(content);
+            this.originalLength = originalLength;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read == -1) {
+                drain();
+            } else {
+                inflated += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                // a reader stopping at the known length never gets the end of the stream
+                if (!drained && (inf.finished() || originalLength >= 0 && inflated >= originalLength)) {
+                    drain();
+                }
+            } catch (final IOException e) {
+                // the content was read entirely, only its caching is lost
+            } finally {
+                super.close();
+            }
+        }
+
+        private void drain() throws IOException {
+            if (drained) {
+                return;
+            }
+            drained = true;
+            final byte[] skipped = new byte[512];
+            while (in.read(skipped) != -1) {
+                // only the end of the deflate data is left
+            }
+        }
+    }
+
+    /**
+     * A content compressed while it is read, {@link #end()} must be called once it is sent
+     */
+    static final class Encoding {
+
+        private final Deflater    deflater = new Deflater(Deflater.BEST_SPEED);
+        private final InputStream stream;
+        private final String      mimeType;
+
+        private Encoding(final InputStream content, final String mimeType) {
+            this.stream = new DeflaterInputStream(content, deflater);
+            this.mimeType = mimeType;
+        }
+
+        InputStream getStream() {
+            return stream;
+        }
+
+        String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * Free the compressor, the original stream is not closed
+         */
+        void end() {
+            deflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.client.api.Document;
+
+/**
+ *
+ * Bounded index of the contents already uploaded, from the SHA-256 of a content and its mime type to the document that
+ * holds it.
+ *
+ * An entry is only trusted while the document still has the length and change token it had when it was indexed.
+ *
+ */
+class ContentIndex {
+
+    private static final String     ALGORITHM  = "SHA-256";
+    private static final char[]     HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Map<String, Entry> entries;
+
+    ContentIndex(final int maxEntries) {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 4207958130372515316L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    synchronized Entry get(final String key) {
+        return entries.get(key);
+    }
+
+    synchronized void put(final String key, final Document document) {
+        entries.put(key, new Entry(document.getId(), document.getContentStreamLength(), document.getChangeToken()));
+    }
+
+    synchronized void remove(final String key) {
+        entries.remove(key);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Read the content to compute its key, the stream is reset to its start afterwards
+     * 
+     * @param content
+     *            a stream that supports mark
+     */
+    static String key(final String mimeType, final InputStream content, final long contentLength) throws IOException {
+        final MessageDigest digest = newDigest();
+        final byte[] buffer = new byte[8192];
+        content.mark((int) contentLength);
+        try {
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            content.reset();
+        }
+        return key(mimeType, digest);
+    }
+
+    static String key(final String mimeType, final MessageDigest digest) {
+        final byte[] hash = digest.digest();
+        final StringBuilder key = new StringBuilder(hash.length * 2 + 32);
+        for (final byte b : hash) {
+            key.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+        }
+        return key.append(' ').append(mimeType).toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    static final class Entry {
+
+        private final String documentId;
+        private final long   contentLength;
+        private final String changeToken;
+
+        Entry(final String documentId, final long contentLength, final String changeToken) {
+            this.documentId = documentId;
+            this.contentLength = contentLength;
+            this.changeToken = changeToken;
+        }
+
+        String getDocumentId() {
+            return documentId;
+        }
+
+        /**
+         * @return true if the document was not modified since it was indexed
+         */
+        boolean matches(final Document document) {
+            if (document.getContentStreamLength() != contentLength) {
+                return false;
+            }
+            return changeToken == null || changeToken.equals(document.getChangeToken());
+        }
+    }
+
+    /**
+     * Compute the key of a content while it is uploaded, the key is only known once the whole stream was read
+     */
+    static final class HashingInputStream extends FilterInputStream {
+
+        private final MessageDigest digest = newDigest();
+        private final String        mimeType;
+        private final long          contentLength;
+        private long                count;
+        private boolean             complete;
+
+        /**
+         * @param contentLength
+         *            the length of the content or -1 if unknown
+         */
+        HashingInputStream(final String mimeType, final InputStream in, final long contentLength) {
+            super(in);
+            this.mimeType = mimeType;
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b == -1) {
+                complete = true;
+            } else {
+                digest.update((byte) b);
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read == -1) {
+                complete = true;
+            } else {
+                digest.update(b, off, read);
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            throw new IOException("skip is not supported while hashing");
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * @return the key of the content or null if the stream was not read until its end
+         */
+        String getKey() {
+            return complete || count == contentLength ? key(mimeType, digest) : null;
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+/**
+ *
+ * Follows the progress of a deletion, it is called by the threads deleting the objects.
+ *
+ */
+public interface DeletionListener {
+
+    /**
+     * @param objectId
+     *            the id of the document or folder tree processed
+     * @param deleted
+     *            false if it could not be deleted, the error is in the {@link DeletionReport}
+     * @param processed
+     *            number of objects processed so far
+     * @param total
+     *            number of objects to process
+     */
+    void objectProcessed(String objectId, boolean deleted, int processed, int total);
+
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Outcome of a deletion: the objects which could not be deleted do not stop the deletion of the others, their errors
+ * are gathered here.
+ *
+ */
+public class DeletionReport {
+
+    private final int                    total;
+    private final AtomicInteger          processed = new AtomicInteger();
+    private final AtomicInteger          deleted   = new AtomicInteger();
+    private final Map<String, Exception> failures  = new ConcurrentHashMap<String, Exception>();
+
+    DeletionReport(final int total) {
+        this.total = total;
+    }
+
+    int deleted(final String objectId) {
+        deleted.incrementAndGet();
+        return processed.incrementAndGet();
+    }
+
+    int failed(final String objectId, final Exception error) {
+        failures.put(objectId, error);
+        return processed.incrementAndGet();
+    }
+
+    /**
+     * @return the number of documents and folder trees to delete
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    public int getDeletedCount() {
+        return deleted.get();
+    }
+
+    /**
+     * @return the error of each object which could not be deleted by id
+     */
+    public Map<String, Exception> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ *
+ * A document to create with
+ * {@link DocumentationManager#createDocuments(org.ow2.bonita.facade.uuid.ProcessDefinitionUUID, org.ow2.bonita.facade.uuid.ProcessInstanceUUID, java.util.List)}
+ *
+ */
+public class DocumentCreation {
+
+    private final String      name;
+    private final String      fileName;
+    private final String      contentMimeType;
+    private final InputStream content;
+    private final long        contentLength;
+
+    /**
+     * Document without content
+     */
+    public DocumentCreation(final String name) {
+        this(name, null, null, null, 0);
+    }
+
+    public DocumentCreation(final String name, final String fileName, final String contentMimeType, final byte[] fileContent) {
+        this(name, fileName, contentMimeType, fileContent != null ? new ByteArrayInputStream(fileContent) : null,
+                fileContent != null ? fileContent.length : 0);
+    }
+
+    /**
+     * @param content
+     *            the content, read once when the document is created, it is not closed
+     * @param contentLength
+     *            the number of bytes of the content or -1 if unknown
+     */
+    public DocumentCreation(final String name, final String fileName, final String contentMimeType, final InputStream content,
+            final long contentLength) {
+        this.name = name;
+        this.fileName = fileName;
+        this.contentMimeType = contentMimeType;
+        this.content = content;
+        this.contentLength = contentLength;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getContentMimeType() {
+        return contentMimeType;
+    }
+
+    public InputStream getContent() {
+        return content;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+}
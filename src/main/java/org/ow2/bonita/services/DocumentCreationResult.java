@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.ow2.bonita.DocumentationCreationException;
+
+/**
+ *
+ * Outcome of a bulk creation: the documents are in the order of the requests, failed ones are null and their error is
+ * available by index.
+ *
+ */
+public class DocumentCreationResult {
+
+    private final List<Document>                              documents;
+    private final Map<Integer, DocumentationCreationException> failures;
+
+    public DocumentCreationResult(final List<Document> documents, final Map<Integer, DocumentationCreationException> failures) {
+        this.documents = Collections.unmodifiableList(documents);
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return the created documents, null at the index of a failed creation
+     */
+    public List<Document> getDocuments() {
+        return documents;
+    }
+
+    /**
+     * @return the error of each failed creation by index of the request
+     */
+    public Map<Integer, DocumentationCreationException> getFailures() {
+        return failures;
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+}
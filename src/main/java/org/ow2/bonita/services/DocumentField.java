@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+/**
+ * Fields of a {@link Document} that can be requested by a search, see {@link DocumentSearchBuilder#select(DocumentField...)}
+ *
+ * PARENT_FOLDER is not a CMIS property: it fills the parent folder id and the process UUIDs and costs an additional
+ * lookup of the folders.
+ */
+public enum DocumentField {
+    ID("cmis:objectId"), NAME("cmis:name"), AUTHOR("cmis:createdBy"), CREATION_DATE("cmis:creationDate"), LAST_MODIFICATION_DATE(
+            "cmis:lastModificationDate"), LATEST_VERSION("cmis:isLatestVersion"), MAJOR_VERSION("cmis:isMajorVersion"), VERSION_LABEL(
+            "cmis:versionLabel"), VERSION_SERIES_ID("cmis:versionSeriesId"), CONTENT_FILE_NAME("cmis:contentStreamFileName"), CONTENT_MIME_TYPE(
+            "cmis:contentStreamMimeType"), CONTENT_SIZE("cmis:contentStreamLength"), PARENT_FOLDER(null);
+
+    private final String cmisProperty;
+
+    private DocumentField(final String cmisProperty) {
+        this.cmisProperty = cmisProperty;
+    }
+
+    /**
+     * @return the CMIS property backing this field or null if it is not a property
+     */
+    public String getCmisProperty() {
+        return cmisProperty;
+    }
+
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ *
+ * Aggregates the measures of a {@link MeteredDocumentationManager}: a latency histogram and counters per operation, and
+ * totals of round trips, transferred bytes and object cache accesses.
+ *
+ */
+public class DocumentManagerMetrics implements DocumentManagerMetricsListener, DocumentManagerMetricsMBean {
+
+    private final ConcurrentMap<String, OperationMetrics> operations      = new ConcurrentHashMap<String, OperationMetrics>();
+    private final AtomicLong                              roundTrips      = new AtomicLong();
+    private final AtomicLong                              bytesUploaded   = new AtomicLong();
+    private final AtomicLong                              bytesDownloaded = new AtomicLong();
+    private final AtomicLong                              cacheHits       = new AtomicLong();
+    private final AtomicLong                              cacheMisses     = new AtomicLong();
+
+    public void operationCompleted(final String operation, final long durationNanos, final int roundTrips,
+            final long bytesUploaded, final long bytesDownloaded, final int cacheHits, final int cacheMisses,
+            final Throwable error) {
+        getOperationMetrics(operation).record(durationNanos, roundTrips, error != null);
+        this.roundTrips.addAndGet(roundTrips);
+        if (bytesUploaded > 0) {
+            this.bytesUploaded.addAndGet(bytesUploaded);
+        }
+        if (bytesDownloaded > 0) {
+            this.bytesDownloaded.addAndGet(bytesDownloaded);
+        }
+        if (cacheHits > 0) {
+            this.cacheHits.addAndGet(cacheHits);
+        }
+        if (cacheMisses > 0) {
+            this.cacheMisses.addAndGet(cacheMisses);
+        }
+    }
+
+    public void contentRead(final String operation, final long bytesRead) {
+        if (bytesRead > 0) {
+            bytesDownloaded.addAndGet(bytesRead);
+        }
+    }
+
+    private OperationMetrics getOperationMetrics(final String operation) {
+        OperationMetrics metrics = operations.get(operation);
+        if (metrics == null) {
+            metrics = new OperationMetrics();
+            final OperationMetrics existing = operations.putIfAbsent(operation, metrics);
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Register these metrics in the platform MBean server
+     * 
+     * @param name
+     *            the object name, e.g. org.ow2.bonita:type=DocumentManagerMetrics
+     */
+    public ObjectName registerMBean(final String name) throws JMException {
+        final ObjectName objectName = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public void unregisterMBean(final ObjectName objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+
+    public String[] getOperations() {
+        return operations.keySet().toArray(new String[0]);
+    }
+
+    public long getCallCount(final String operation) {
+        final OperationMetrics metrics = operations.get(operation);
+        return metrics != null ? metrics.count.get() : 0;
+    }
+
+    public long getErrorCount(final String operation) {
+        final OperationMetrics metrics = operations.get(operation);
+        return metrics != null ? metrics.errors.get() : 0;
+    }
+
+    public double getMeanLatencyMillis(final String operation) {
+        final OperationMetrics metrics = operations.get(operation);
+        if (metrics == null || metrics.count.get() == 0) {
+            return 0;
+        }
+        return metrics.totalNanos.get() / 1000000d / metrics.count.get();
+    }
+
+    public double getMaxLatencyMillis(final String operation) {
+        final OperationMetrics metrics = operations.get(operation);
+        return metrics != null ? metrics.maxNanos.get() / 1000000d : 0;
+    }
+
+    public double getLatencyPercentileMillis(final String operation, final double percentile) {
+        final OperationMetrics metrics = operations.get(operation);
+        if (metrics == null) {
+            return 0;
+        }
+        return metrics.percentileMicros(percentile) / 1000d;
+    }
+
+    public double getMeanRoundTrips(final String operation) {
+        final OperationMetrics metrics = operations.get(operation);
+        if (metrics == null || metrics.count.get() == 0) {
+            return 0;
+        }
+        return (double) metrics.roundTrips.get() / metrics.count.get();
+    }
+
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    public double getCacheHitRatio() {
+        final long hits = cacheHits.get();
+        final long total = hits + cacheMisses.get();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    public void reset() {
+        operations.clear();
+        roundTrips.set(0);
+        bytesUploaded.set(0);
+        bytesDownloaded.set(0);
+        cacheHits.set(0);
+        cacheMisses.set(0);
+    }
+
+    /**
+     * Bucket i of the histogram counts the latencies lower than 2^i microseconds and not counted by the previous bucket
+     */
+    private static final class OperationMetrics {
+
+        private final AtomicLong      count      = new AtomicLong();
+        private final AtomicLong      errors     = new AtomicLong();
+        private final AtomicLong      totalNanos = new AtomicLong();
+        private final AtomicLong      maxNanos   = new AtomicLong();
+        private final AtomicLong      roundTrips = new AtomicLong();
+        private final AtomicLongArray buckets    = new AtomicLongArray(64);
+
+        void record(final long durationNanos, final int roundTrips, final boolean failed) {
+            count.incrementAndGet();
+            if (failed) {
+                errors.incrementAndGet();
+            }
+            totalNanos.addAndGet(durationNanos);
+            this.roundTrips.addAndGet(roundTrips);
+            long max = maxNanos.get();
+            while (durationNanos > max && !maxNanos.compareAndSet(max, durationNanos)) {
+                max = maxNanos.get();
+            }
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, durationNanos / 1000)));
+        }
+
+        long percentileMicros(final double percentile) {
+            final long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return i < 63 ? 1L << i : Long.MAX_VALUE;
+                }
+            }
+            return maxNanos.get() / 1000;
+        }
+    }
+
+}
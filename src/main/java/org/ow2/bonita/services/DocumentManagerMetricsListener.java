@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+/**
+ *
+ * Receives the measures of each call made to a {@link MeteredDocumentationManager}, it is called on the thread of the
+ * call and must return quickly.
+ *
+ */
+public interface DocumentManagerMetricsListener {
+
+    /**
+     * @param operation
+     *            name of the method of the {@link DocumentationManager}
+     * @param durationNanos
+     *            duration of the call
+     * @param roundTrips
+     *            number of HTTP requests sent to the repository by the calling thread
+     * @param bytesUploaded
+     *            content bytes sent to the repository
+     * @param bytesDownloaded
+     *            content bytes read from the repository
+     * @param cacheHits
+     *            objects served by the object cache
+     * @param cacheMisses
+     *            objects looked up in the object cache and read from the repository
+     * @param error
+     *            the exception thrown by the call, null if it succeeded
+     */
+    void operationCompleted(String operation, long durationNanos, int roundTrips, long bytesUploaded, long bytesDownloaded,
+            int cacheHits, int cacheMisses, Throwable error);
+
+    /**
+     * Called when a content stream returned by an operation is closed, the bytes read from it are not part of the
+     * bytesDownloaded of the operation
+     * 
+     * @param operation
+     *            name of the method of the {@link DocumentationManager} that returned the stream
+     * @param bytesRead
+     *            content bytes read from the stream
+     */
+    void contentRead(String operation, long bytesRead);
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+/**
+ *
+ * JMX view of {@link DocumentManagerMetrics}
+ *
+ */
+public interface DocumentManagerMetricsMBean {
+
+    String[] getOperations();
+
+    long getCallCount(String operation);
+
+    long getErrorCount(String operation);
+
+    double getMeanLatencyMillis(String operation);
+
+    double getMaxLatencyMillis(String operation);
+
+    /**
+     * @param percentile
+     *            between 0 and 100
+     * @return an upper bound of the latency of this percentile, the histogram buckets are powers of two in microseconds
+     */
+    double getLatencyPercentileMillis(String operation, double percentile);
+
+    double getMeanRoundTrips(String operation);
+
+    long getRoundTrips();
+
+    long getBytesUploaded();
+
+    long getBytesDownloaded();
+
+    double getCacheHitRatio();
+
+    void reset();
+
+}
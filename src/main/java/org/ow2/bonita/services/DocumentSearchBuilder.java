@@ -15,7 +15,9 @@ package org.ow2.bonita.services;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * 
@@ -28,6 +30,7 @@ public class DocumentSearchBuilder implements Serializable {
 
     private List<Object>      query;
     private boolean           searchAllVersions = false;
+    private Set<DocumentField> projection       = EnumSet.allOf(DocumentField.class);
 
     public DocumentSearchBuilder() {
         query = new ArrayList<Object>();
@@ -80,4 +83,24 @@ public class DocumentSearchBuilder implements Serializable {
         return searchAllVersions;
     }
 
+    /**
+     * Only retrieve the given fields of the documents, the others are left empty. The id is always retrieved.
+     */
+    public DocumentSearchBuilder select(DocumentField... fields) {
+        projection = EnumSet.of(DocumentField.ID, fields);
+        return this;
+    }
+
+    /**
+     * Retrieve all the fields of the documents (default)
+     */
+    public DocumentSearchBuilder selectAll() {
+        projection = EnumSet.allOf(DocumentField.class);
+        return this;
+    }
+
+    public Set<DocumentField> getProjection() {
+        return projection;
+    }
+
 }
@@ -1,6 +1,11 @@
 package org.ow2.bonita.services;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 
 import org.ow2.bonita.DocumentAlreadyExistsException;
@@ -45,9 +50,43 @@ public interface DocumentationManager {
             final ProcessInstanceUUID instanceUUID, String fileName, String contentMimeType, final byte[] fileContent)
             throws DocumentationCreationException, DocumentAlreadyExistsException;
 
+    /**
+     * Creates a document into the given folder and store the content read from the stream. The content is sent to the
+     * repository while it is read, the stream is not closed.
+     * 
+     * @param contentLength
+     *            the number of bytes of the content or -1 if unknown
+     */
+    Document createDocument(final String name, final ProcessDefinitionUUID definitionUUID,
+            final ProcessInstanceUUID instanceUUID, String fileName, String contentMimeType, final InputStream content,
+            long contentLength) throws DocumentationCreationException, DocumentAlreadyExistsException;
+
+    /**
+     * Same as {@link #createDocument(String, ProcessDefinitionUUID, ProcessInstanceUUID, String, String, InputStream, long)}
+     * reading the content from a channel
+     */
+    Document createDocument(final String name, final ProcessDefinitionUUID definitionUUID,
+            final ProcessInstanceUUID instanceUUID, String fileName, String contentMimeType, final ReadableByteChannel content,
+            long contentLength) throws DocumentationCreationException, DocumentAlreadyExistsException;
+
+    /**
+     * Creates several documents in the folder of the process instance. The folder is resolved and listed once, the
+     * contents are uploaded in parallel. A failed creation does not prevent the others.
+     * 
+     * @return the created documents and the failures, in the order of the list
+     * @throws DocumentationCreationException
+     *             if the folder of the process instance can't be resolved
+     */
+    DocumentCreationResult createDocuments(final ProcessDefinitionUUID definitionUUID, final ProcessInstanceUUID instanceUUID,
+            List<DocumentCreation> documents) throws DocumentationCreationException;
+
     Document createDocument(final String name, final String folderId, String fileName, String contentMimeType,
             final byte[] fileContent) throws DocumentationCreationException, DocumentAlreadyExistsException;
 
+    Document createDocument(final String name, final String folderId, String fileName, String contentMimeType,
+            final InputStream content, long contentLength) throws DocumentationCreationException,
+            DocumentAlreadyExistsException;
+
     Document createDocument(String name, ProcessDefinitionUUID definitionUUID, ProcessInstanceUUID instanceUUID, String author,
             Date versionDate) throws DocumentationCreationException, DocumentAlreadyExistsException;
 
@@ -79,6 +118,16 @@ public interface DocumentationManager {
      */
     void deleteFolder(Folder folder);
 
+    /**
+     * Delete a folder and its content, the documents and sub-folders are deleted in parallel. The objects which can't be
+     * deleted do not stop the deletion of the others, the folder itself is only deleted if its content could be.
+     * 
+     * @param listener
+     *            notified after each deletion, may be null
+     * @return the number of deleted objects and the failures
+     */
+    DeletionReport deleteFolder(Folder folder, DeletionListener listener);
+
     /**
      * Get the contents of a document.
      * 
@@ -87,6 +136,40 @@ public interface DocumentationManager {
      */
     byte[] getContent(final Document document) throws DocumentNotFoundException;
 
+    /**
+     * Get the contents of a document as a stream read directly from the repository, the caller must close it.
+     * 
+     * @param document
+     * @return the contents of the document or null if it has none
+     */
+    InputStream getContentStream(final Document document) throws DocumentNotFoundException;
+
+    /**
+     * Get a part of the contents of a document, only this part is transferred when the repository supports it.
+     * 
+     * @param document
+     * @param offset
+     *            index of the first byte
+     * @param length
+     *            maximum number of bytes, -1 to read until the end
+     * @return the bytes of the range, fewer than length if the content ends before, or null if the document has no content
+     */
+    byte[] getContent(final Document document, long offset, long length) throws DocumentNotFoundException;
+
+    /**
+     * Same as {@link #getContent(Document, long, long)} as a stream, the caller must close it.
+     */
+    InputStream getContentStream(final Document document, long offset, long length) throws DocumentNotFoundException;
+
+    /**
+     * Write the contents of a document to the channel without loading them in memory. The channel is not closed.
+     * 
+     * @param document
+     * @param channel
+     * @return the number of bytes written
+     */
+    long getContent(final Document document, WritableByteChannel channel) throws DocumentNotFoundException, IOException;
+
     /**
      * Get all the folder having the name folderName
      * 
@@ -139,13 +222,74 @@ public interface DocumentationManager {
     Document createVersion(String documentId, boolean isMajorVersion, String author, Date versionDate, String fileName,
             String mimeType, byte[] content) throws DocumentationCreationException;
 
+    /**
+     * Creates a new version whose content is read from the stream, the stream is not closed.
+     * 
+     * @param contentLength
+     *            the number of bytes of the content or -1 if unknown
+     */
+    Document createVersion(String documentId, boolean isMajorVersion, String fileName, String mimeType, InputStream content,
+            long contentLength) throws DocumentationCreationException;
+
+    Document createVersion(String documentId, boolean isMajorVersion, String fileName, String mimeType,
+            ReadableByteChannel content, long contentLength) throws DocumentationCreationException;
+
+    /**
+     * Start a document whose content is sent in chunks, see {@link ChunkedUpload}. The document is created when the upload
+     * is completed.
+     */
+    ChunkedUpload startUpload(String name, ProcessDefinitionUUID definitionUUID, ProcessInstanceUUID instanceUUID,
+            String fileName, String contentMimeType) throws DocumentationCreationException;
+
+    /**
+     * Start a new version whose content is sent in chunks, see {@link ChunkedUpload}. The version is created when the
+     * upload is completed.
+     */
+    ChunkedUpload startVersionUpload(String documentId, boolean isMajorVersion, String fileName, String mimeType)
+            throws DocumentationCreationException;
+
+    /**
+     * @return the upload not yet completed or aborted with this id, null if there is none
+     */
+    ChunkedUpload getUpload(String uploadId);
+
     SearchResult search(DocumentSearchBuilder builder, int fromResult, int maxResults);
 
+    /**
+     * Iterate over all the documents matching the search. The documents are fetched from the repository one page at a
+     * time while iterating, an iteration stopped early does not fetch the remaining pages.
+     * 
+     * @param pageSize
+     *            number of documents fetched at a time
+     */
+    Iterator<Document> searchCursor(DocumentSearchBuilder builder, int pageSize);
+
+    /**
+     * Count the documents matching the search without retrieving them, the projection of the builder is ignored.
+     * 
+     * @return the number of matching documents
+     */
+    long count(DocumentSearchBuilder builder);
+
     void clear() throws DocumentNotFoundException;
 
+    /**
+     * Delete the content of the root folder in parallel, see {@link #deleteFolder(Folder, DeletionListener)}
+     */
+    DeletionReport clear(DeletionListener listener);
+
     void updateDocumentContent(final String documentId, final String fileName, final String mimeType, final int size,
             final byte[] content) throws DocumentNotFoundException;
 
+    /**
+     * Replace the content of a document by the one read from the stream, the stream is not closed.
+     * 
+     * @param contentLength
+     *            the number of bytes of the content or -1 if unknown
+     */
+    void updateDocumentContent(final String documentId, final String fileName, final String mimeType,
+            final InputStream content, final long contentLength) throws DocumentNotFoundException;
+
     public void attachDocumentTo(final ProcessDefinitionUUID processDefinitionUUID, final String documentId)
             throws DocumentNotFoundException;
 
@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.ow2.bonita.facade.uuid.AbstractUUID;
+import org.ow2.bonita.facade.uuid.ProcessDefinitionUUID;
+import org.ow2.bonita.facade.uuid.ProcessInstanceUUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Append-only file keeping the ids of the folders of process definitions and instances across restarts. The folders it
+ * gives are not trusted: the document manager checks them against the repository the first time they are used.
+ *
+ * The file starts with a header identifying the repository, followed by records made of a type, the UUID and the folder
+ * id. A truncated last record, left by a crash, is ignored. The file is rewritten with the live entries only when it is
+ * loaded and holds too many obsolete records.
+ *
+ * The index is an optimization: an I/O error disables it and the document manager works as without it. So does a lock
+ * held on the index by another document manager, of this process or another one, until it is closed.
+ *
+ */
+final class FolderIndex {
+
+    private static final Logger LOGGER             = LoggerFactory.getLogger(FolderIndex.class);
+
+    private static final int    MAGIC              = 0x42434649;
+    private static final int    VERSION            = 1;
+    private static final byte   DEFINITION         = 'D';
+    private static final byte   INSTANCE           = 'I';
+    private static final byte   REMOVED_DEFINITION = 'd';
+    private static final byte   REMOVED_INSTANCE   = 'i';
+
+    private final File          file;
+    private final String        repositoryKey;
+    private DataOutputStream    output;
+    private RandomAccessFile    lockFile;
+    private FileLock            lock;
+
+    /**
+     * @param repositoryKey
+     *            identifies the repository and root folder, a file written for another one is discarded
+     */
+    FolderIndex(final File file, final String repositoryKey) {
+        this.file = file;
+        this.repositoryKey = repositoryKey;
+    }
+
+    /**
+     * Fill the maps with the content of the file and open it for appending, nothing is done if the index is locked
+     */
+    synchronized void load(final Map<ProcessDefinitionUUID, String> definitionFolders,
+            final Map<ProcessInstanceUUID, String> instanceFolders) {
+        if (!lock()) {
+            return;
+        }
+        boolean rewrite = true;
+        if (file.exists()) {
+            try {
+                rewrite = read(definitionFolders, instanceFolders);
+            } catch (final IOException e) {
+                LOGGER.warn("Can't read the folder index " + file + ", it is rebuilt", e);
+                definitionFolders.clear();
+                instanceFolders.clear();
+            }
+        }
+        try {
+            if (rewrite) {
+                write(definitionFolders, instanceFolders);
+            }
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        } catch (final IOException e) {
+            disable(e);
+        }
+    }
+
+    /**
+     * Lock a file next to the index, the index itself is replaced when it is rewritten
+     * 
+     * @return false if the index is locked by another document manager or can't be locked
+     */
+    private boolean lock() {
+        try {
+            lockFile = new RandomAccessFile(file.getPath() + ".lock", "rw");
+            lock = lockFile.getChannel().tryLock();
+        } catch (final OverlappingFileLockException e) {
+            // locked by another document manager of this process
+            lock = null;
+        } catch (final IOException e) {
+            LOGGER.warn("Can't lock the folder index " + file, e);
+            lock = null;
+        }
+        if (lock == null) {
+            LOGGER.warn("The folder index " + file + " is used by another document manager, it is disabled");
+            releaseLock();
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseLock() {
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (lockFile != null) {
+                lockFile.close();
+            }
+        } catch (final IOException e) {
+            LOGGER.warn("Can't release the lock of the folder index " + file, e);
+        }
+        lock = null;
+        lockFile = null;
+    }
+
+    /**
+     * Close the file and release the lock, the index is disabled afterwards
+     */
+    synchronized void close() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (final IOException e) {
+                LOGGER.warn("Can't close the folder index " + file, e);
+            }
+            output = null;
+        }
+        releaseLock();
+    }
+
+    /**
+     * @return true if the file must be rewritten
+     */
+    private boolean read(final Map<ProcessDefinitionUUID, String> definitionFolders,
+            final Map<ProcessInstanceUUID, String> instanceFolders) throws IOException {
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || !repositoryKey.equals(input.readUTF())) {
+                return true;
+            }
+            int records = 0;
+            while (true) {
+                final int type = input.read();
+                if (type == -1) {
+                    break;
+                }
+                try {
+                    final String uuid = input.readUTF();
+                    switch (type) {
+                    case DEFINITION:
+                        definitionFolders.put(new ProcessDefinitionUUID(uuid), input.readUTF());
+                        break;
+                    case INSTANCE:
+                        instanceFolders.put(new ProcessInstanceUUID(uuid), input.readUTF());
+                        break;
+                    case REMOVED_DEFINITION:
+                        definitionFolders.remove(new ProcessDefinitionUUID(uuid));
+                        break;
+                    case REMOVED_INSTANCE:
+                        instanceFolders.remove(new ProcessInstanceUUID(uuid));
+                        break;
+                    default:
+                        throw new IOException("Unknown record type " + type);
+                    }
+                } catch (final EOFException e) {
+                    // last record partially written
+                    return true;
+                }
+                records++;
+            }
+            return records > 2 * (definitionFolders.size() + instanceFolders.size()) + 64;
+        } finally {
+            input.close();
+        }
+    }
+
+    private void write(final Map<ProcessDefinitionUUID, String> definitionFolders,
+            final Map<ProcessInstanceUUID, String> instanceFolders) throws IOException {
+        final File temporaryFile = new File(file.getPath() + ".tmp");
+        final DataOutputStream temporaryOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                temporaryFile)));
+        try {
+            temporaryOutput.writeInt(MAGIC);
+            temporaryOutput.writeInt(VERSION);
+            temporaryOutput.writeUTF(repositoryKey);
+            for (final Entry<ProcessDefinitionUUID, String> entry : definitionFolders.entrySet()) {
+                writeRecord(temporaryOutput, DEFINITION, entry.getKey(), entry.getValue());
+            }
+            for (final Entry<ProcessInstanceUUID, String> entry : instanceFolders.entrySet()) {
+                writeRecord(temporaryOutput, INSTANCE, entry.getKey(), entry.getValue());
+            }
+        } finally {
+            temporaryOutput.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            // some platforms can't rename over an existing file
+            file.delete();
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Can't replace " + file);
+            }
+        }
+    }
+
+    private static void writeRecord(final DataOutputStream out, final byte type, final AbstractUUID uuid,
+            final String folderId) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(uuid.getValue());
+        if (folderId != null) {
+            out.writeUTF(folderId);
+        }
+    }
+
+    /**
+     * @param uuid
+     *            a ProcessDefinitionUUID or a ProcessInstanceUUID
+     */
+    synchronized void folderMapped(final AbstractUUID uuid, final String folderId) {
+        append(uuid instanceof ProcessDefinitionUUID ? DEFINITION : INSTANCE, uuid, folderId);
+    }
+
+    synchronized void folderRemoved(final AbstractUUID uuid) {
+        append(uuid instanceof ProcessDefinitionUUID ? REMOVED_DEFINITION : REMOVED_INSTANCE, uuid, null);
+    }
+
+    /**
+     * Forget all the folders
+     */
+    synchronized void clear() {
+        if (output == null) {
+            return;
+        }
+        try {
+            output.close();
+            write(new HashMap<ProcessDefinitionUUID, String>(), new HashMap<ProcessInstanceUUID, String>());
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        } catch (final IOException e) {
+            disable(e);
+        }
+    }
+
+    private void append(final byte type, final AbstractUUID uuid, final String folderId) {
+        if (output == null) {
+            return;
+        }
+        try {
+            writeRecord(output, type, uuid, folderId);
+            output.flush();
+        } catch (final IOException e) {
+            disable(e);
+        }
+    }
+
+    private void disable(final IOException e) {
+        LOGGER.warn("Can't write the folder index " + file + ", it is disabled", e);
+        if (output != null) {
+            try {
+                output.close();
+            } catch (final IOException e1) {
+                // already failing
+            }
+        }
+        output = null;
+    }
+
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * Bounded map evicting the least recently used entry once full, safe for concurrent use.
+ *
+ */
+class LruCache<K, V> {
+
+    private final Entries<K, V> entries;
+
+    LruCache(final int maxSize) {
+        entries = new Entries<K, V>(maxSize);
+    }
+
+    synchronized V get(final K key) {
+        return entries.get(key);
+    }
+
+    synchronized void put(final K key, final V value) {
+        entries.put(key, value);
+    }
+
+    /**
+     * @return the value already mapped to the key, or null if the given value was added
+     */
+    synchronized V putIfAbsent(final K key, final V value) {
+        final V previous = entries.get(key);
+        if (previous != null) {
+            return previous;
+        }
+        entries.put(key, value);
+        return null;
+    }
+
+    synchronized void remove(final K key) {
+        entries.remove(key);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    private static final class Entries<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int         maxSize;
+
+        Entries(final int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+
+    }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ *
+ * Measures each call made to a documentation manager and reports it to a listener. Round trips are only counted by a
+ * {@link CMISDocumentManager}, and only for the requests sent by the calling thread.
+ *
+ * Without it the counting done by the manager costs one thread local lookup per counted event.
+ *
+ */
+public final class MeteredDocumentationManager implements InvocationHandler {
+
+    private final DocumentationManager           manager;
+    private final DocumentManagerMetricsListener listener;
+
+    private MeteredDocumentationManager(final DocumentationManager manager, final DocumentManagerMetricsListener listener) {
+        this.manager = manager;
+        this.listener = listener;
+    }
+
+    /**
+     * @return a documentation manager delegating to the given one and reporting each call to the listener
+     */
+    public static DocumentationManager newInstance(final DocumentationManager manager,
+            final DocumentManagerMetricsListener listener) {
+        return (DocumentationManager) Proxy.newProxyInstance(DocumentationManager.class.getClassLoader(),
+                new Class<?>[] { DocumentationManager.class }, new MeteredDocumentationManager(manager, listener));
+    }
+
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return method.invoke(manager, args);
+        }
+        final CallStatistics statistics = CallStatistics.begin();
+        if (statistics == null) {
+            // nested in a measured call
+            return invokeManager(method, args);
+        }
+        final long start = System.nanoTime();
+        Throwable error = null;
+        try {
+            final Object result = invokeManager(method, args);
+            if (result instanceof InputStream) {
+                return new CountingInputStream((InputStream) result, method.getName());
+            }
+            return result;
+        } catch (final Throwable t) {
+            error = t;
+            throw t;
+        } finally {
+            final long duration = System.nanoTime() - start;
+            CallStatistics.end();
+            listener.operationCompleted(method.getName(), duration, statistics.roundTrips, statistics.bytesUploaded,
+                    statistics.bytesDownloaded, statistics.cacheHits, statistics.cacheMisses, error);
+        }
+    }
+
+    private Object invokeManager(final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(manager, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Content returned as a stream is read after the call: its bytes are reported when the stream is closed
+     */
+    private final class CountingInputStream extends FilterInputStream {
+
+        private final String operation;
+        private long         bytesRead;
+        private boolean      closed;
+
+        CountingInputStream(final InputStream in, final String operation) {
+            super(in);
+            this.operation = operation;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                bytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                bytesRead += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!closed) {
+                    closed = true;
+                    listener.contentRead(operation, bytesRead);
+                }
+            }
+        }
+    }
+
+}
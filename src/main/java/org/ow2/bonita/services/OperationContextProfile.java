@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.chemistry.opencmis.client.api.OperationContext;
+import org.apache.chemistry.opencmis.client.runtime.OperationContextImpl;
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+
+/**
+ *
+ * Named sets of options used when reading objects from the repository.
+ *
+ * None of them asks for ACLs, allowable actions, policies, relationships or renditions: the document manager never
+ * uses them.
+ *
+ */
+public enum OperationContextProfile {
+
+    /**
+     * properties needed to convert documents and folders
+     */
+    MINIMAL_METADATA(100),
+
+    /**
+     * properties needed to check out, check in and list versions of a document
+     */
+    VERSIONING(100, PropertyIds.IS_LATEST_MAJOR_VERSION, PropertyIds.IS_VERSION_SERIES_CHECKED_OUT,
+            PropertyIds.VERSION_SERIES_CHECKED_OUT_ID, PropertyIds.CHECKIN_COMMENT),
+
+    /**
+     * same properties as MINIMAL_METADATA with large pages, used to list the children of a folder
+     */
+    CHILDREN(1000);
+
+    private static final Set<String> MINIMAL_FILTER    = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+                                                               PropertyIds.OBJECT_ID, PropertyIds.OBJECT_TYPE_ID,
+                                                               PropertyIds.BASE_TYPE_ID, PropertyIds.NAME,
+                                                               PropertyIds.CREATED_BY, PropertyIds.CREATION_DATE,
+                                                               PropertyIds.LAST_MODIFICATION_DATE, PropertyIds.CHANGE_TOKEN,
+                                                               PropertyIds.IS_LATEST_VERSION, PropertyIds.IS_MAJOR_VERSION,
+                                                               PropertyIds.VERSION_LABEL, PropertyIds.VERSION_SERIES_ID,
+                                                               PropertyIds.CONTENT_STREAM_FILE_NAME,
+                                                               PropertyIds.CONTENT_STREAM_MIME_TYPE,
+                                                               PropertyIds.CONTENT_STREAM_LENGTH, PropertyIds.PATH)));
+
+    private final int                pageSize;
+    private final String[]           additionalProperties;
+
+    private OperationContextProfile(final int pageSize, final String... additionalProperties) {
+        this.pageSize = pageSize;
+        this.additionalProperties = additionalProperties;
+    }
+
+    /**
+     * @return a new operation context with the default options of this profile
+     */
+    public OperationContext createDefaultContext() {
+        final Set<String> filter = new HashSet<String>(MINIMAL_FILTER);
+        filter.addAll(Arrays.asList(additionalProperties));
+        return new OperationContextImpl(filter, false, false, false, IncludeRelationships.NONE,
+                Collections.singleton("cmis:none"), false, null, false, pageSize);
+    }
+
+}
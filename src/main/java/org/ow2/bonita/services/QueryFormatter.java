@@ -36,12 +36,49 @@ class QueryFormatter {
             R_PARENTHESIS, L_CURLY_BRACKET, R_CURLY_BRACKET, L_SQUARE_BRACKET, R_SQUARE_BRACKET, "^", "\"", "~", WILDCARD, "?",
             FIELD_VALUE_SEPARATOR                  };
 
+    /**
+     * single character entries of specialCharacters
+     */
+    private static final String SPECIAL_CHARACTERS  = "\\+-!(){}[]^\"~*?:";
+
+    /**
+     * Escape the special characters in a single pass, the two characters operators && and || are escaped as a whole
+     */
     protected static String escapeSpecialCharacters(String value) {
-        String temp = value;
-        for (String specialCharacter : specialCharacters) {
-            temp = temp.replace(specialCharacter, "\\" + specialCharacter);
+        StringBuilder escaped = null;
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            final boolean doubled = (c == '&' || c == '|') && i + 1 < length && value.charAt(i + 1) == c;
+            if (doubled || SPECIAL_CHARACTERS.indexOf(c) >= 0) {
+                if (escaped == null) {
+                    escaped = new StringBuilder(length + 16).append(value, 0, i);
+                }
+                escaped.append('\\').append(c);
+                if (doubled) {
+                    escaped.append(c);
+                    i++;
+                }
+            } else if (escaped != null) {
+                escaped.append(c);
+            }
+        }
+        return escaped != null ? escaped.toString() : value;
+    }
+
+    /**
+     * Append the value as a CMIS-QL string literal: quoted, with its quotes and backslashes escaped
+     */
+    static StringBuilder appendCmisString(final StringBuilder builder, final String value) {
+        builder.append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\'' || c == '\\') {
+                builder.append('\\');
+            }
+            builder.append(c);
         }
-        return temp;
+        return builder.append('\'');
     }
 
     protected static String field(String fieldName, String value) {
@@ -0,0 +1,307 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ *
+ * CMIS-QL statement compiled from the shape of a {@link DocumentSearchBuilder}: the fixed parts of the statement are
+ * computed once, only the values of the criteria are bound for each search.
+ *
+ * Two builders have the same shape if they select the same fields and have the same criteria fields, kinds of
+ * comparison and operators, in the same order.
+ *
+ */
+final class QueryTemplate {
+
+    /**
+     * Kind of the value bound to a slot of the statement
+     */
+    enum SlotType {
+        /** a quoted string literal */
+        STRING,
+        /** a comma separated list of quoted string literals */
+        STRINGS,
+        /** a quoted timestamp */
+        TIMESTAMP,
+        /** the id of the folder of a process definition */
+        DEFINITION_FOLDER,
+        /** the id of the folder of a process instance */
+        INSTANCE_FOLDER
+    }
+
+    /**
+     * Part of a criterion bound to a slot
+     */
+    private enum ValuePart {
+        VALUE, VALUES, FROM, TO
+    }
+
+    private final String[]    fragments;
+    private final SlotType[]  slots;
+    /** index in the query of the criterion bound to each slot */
+    private final int[]       criteria;
+    private final ValuePart[] parts;
+    private final int         scopeSlot;
+    private final int         length;
+
+    private QueryTemplate(final List<String> fragments, final List<Slot> slots, final int scopeSlot) {
+        this.fragments = fragments.toArray(new String[fragments.size()]);
+        this.slots = new SlotType[slots.size()];
+        this.criteria = new int[slots.size()];
+        this.parts = new ValuePart[slots.size()];
+        for (int i = 0; i < slots.size(); i++) {
+            this.slots[i] = slots.get(i).type;
+            this.criteria[i] = slots.get(i).criterion;
+            this.parts[i] = slots.get(i).part;
+        }
+        this.scopeSlot = scopeSlot;
+        int fixedLength = 0;
+        for (final String fragment : fragments) {
+            fixedLength += fragment.length();
+        }
+        this.length = fixedLength;
+    }
+
+    /**
+     * @return the key identifying the shape of the search
+     */
+    static String shapeOf(final DocumentSearchBuilder builder, final Set<DocumentField> projection) {
+        final StringBuilder shape = new StringBuilder();
+        shape.append(projection);
+        for (final Object object : builder.getQuery()) {
+            shape.append('|');
+            if (object instanceof DocumentCriterion) {
+                final DocumentCriterion criterion = (DocumentCriterion) object;
+                shape.append(criterion.getField());
+                if (criterion.getField() == DocumentIndex.IS_EMPTY) {
+                    shape.append('=').append(criterion.getValue());
+                } else if (criterion.getValues() != null) {
+                    shape.append(" IN");
+                } else if (criterion.getValue() == null) {
+                    shape.append(" BETWEEN");
+                }
+            } else {
+                shape.append(object);
+            }
+        }
+        return shape.toString();
+    }
+
+    /**
+     * The scope of the results is the folder of an IN_FOLDER criterion only if this criterion is outside of any
+     * parenthesis, is the only one there, and no OR is used outside of a parenthesis.
+     */
+    static QueryTemplate compile(final DocumentSearchBuilder builder, final Set<DocumentField> projection) {
+        final List<String> fragments = new ArrayList<String>();
+        final List<Slot> slots = new ArrayList<Slot>();
+        // index of the folder restricting the results, -1 if none or if the results can come from several folders
+        int scopeSlot = -1;
+        boolean scopeAmbiguous = false;
+        int depth = 0;
+
+        final StringBuilder fragment = new StringBuilder("SELECT ");
+        boolean first = true;
+        for (final DocumentField field : projection) {
+            if (field.getCmisProperty() != null) {
+                if (!first) {
+                    fragment.append(",");
+                }
+                fragment.append(field.getCmisProperty());
+                first = false;
+            }
+        }
+        fragment.append(" FROM cmis:document");
+        final List<Object> query = builder.getQuery();
+        if (!query.isEmpty()) {
+            fragment.append(" WHERE ");
+        }
+        for (int index = 0; index < query.size(); index++) {
+            final Object object = query.get(index);
+            if (object instanceof DocumentCriterion) {
+                final DocumentCriterion criterion = (DocumentCriterion) object;
+                switch (criterion.getField()) {
+                case ID:
+                    compileEqualsOrIn(fragment, fragments, slots, index, criterion, "cmis:objectId");
+                    break;
+                case PROCESS_DEFINITION_UUID:
+                    fragment.append(" IN_TREE(");
+                    addSlot(fragment, fragments, slots, SlotType.DEFINITION_FOLDER, index, ValuePart.VALUE);
+                    fragment.append(") ");
+                    break;
+                case PROCESS_DEFINITION_UUID_WITHOUT_INSTANCES:
+                case PROCESS_INSTANCE_UUID:
+                    final SlotType folderType = criterion.getField() == DocumentIndex.PROCESS_INSTANCE_UUID ? SlotType.INSTANCE_FOLDER
+                            : SlotType.DEFINITION_FOLDER;
+                    fragment.append(" IN_FOLDER(");
+                    final int slot = addSlot(fragment, fragments, slots, folderType, index, ValuePart.VALUE);
+                    fragment.append(") ");
+                    if (depth == 0) {
+                        scopeAmbiguous |= scopeSlot != -1;
+                        scopeSlot = slot;
+                    }
+                    break;
+                case NAME:
+                    compileEqualsOrIn(fragment, fragments, slots, index, criterion, "cmis:name");
+                    break;
+                case FILENAME:
+                    compileEqualsOrIn(fragment, fragments, slots, index, criterion, "cmis:contentStreamFileName");
+                    break;
+                case CREATION_DATE:
+                    compileTimeComparison(fragment, fragments, slots, index, criterion, "cmis:creationDate");
+                    break;
+                case AUTHOR:
+                    compileEqualsOrIn(fragment, fragments, slots, index, criterion, "cmis:createdBy");
+                    break;
+                case LAST_MODIFICATION_DATE:
+                    compileTimeComparison(fragment, fragments, slots, index, criterion, "cmis:lastModificationDate");
+                    break;
+                case IS_EMPTY:
+                    if ((Boolean) criterion.getValue()) {
+                        fragment.append(" cmis:contentStreamLength = 0 ");
+                    } else {
+                        fragment.append(" cmis:contentStreamLength > 0 ");
+                    }
+                    break;
+                }
+            } else {
+                if (QueryFormatter.L_PARENTHESIS.equals(object)) {
+                    depth++;
+                } else if (QueryFormatter.R_PARENTHESIS.equals(object)) {
+                    depth--;
+                } else if (depth == 0 && QueryFormatter.OR.equals(object)) {
+                    scopeAmbiguous = true;
+                }
+                fragment.append(" ").append(object).append(" ");
+            }
+        }
+        fragments.add(fragment.toString());
+        return new QueryTemplate(fragments, slots, scopeAmbiguous ? -1 : scopeSlot);
+    }
+
+    private static int addSlot(final StringBuilder fragment, final List<String> fragments, final List<Slot> slots,
+            final SlotType type, final int criterion, final ValuePart part) {
+        fragments.add(fragment.toString());
+        fragment.setLength(0);
+        slots.add(new Slot(type, criterion, part));
+        return slots.size() - 1;
+    }
+
+    private static void compileEqualsOrIn(final StringBuilder fragment, final List<String> fragments,
+            final List<Slot> slots, final int index, final DocumentCriterion criterion, final String field) {
+        if (criterion.getValues() != null) {
+            fragment.append(" ").append(field).append(" IN (");
+            addSlot(fragment, fragments, slots, SlotType.STRINGS, index, ValuePart.VALUES);
+            fragment.append(") ");
+        } else {
+            fragment.append(" ").append(field).append(" = ");
+            addSlot(fragment, fragments, slots, SlotType.STRING, index, ValuePart.VALUE);
+            fragment.append(" ");
+        }
+    }
+
+    private static void compileTimeComparison(final StringBuilder fragment, final List<String> fragments,
+            final List<Slot> slots, final int index, final DocumentCriterion criterion, final String attribute) {
+        if (criterion.getValue() != null) {
+            fragment.append(attribute).append(" = TIMESTAMP ");
+            addSlot(fragment, fragments, slots, SlotType.TIMESTAMP, index, ValuePart.VALUE);
+            fragment.append(" ");
+        } else {
+            fragment.append(" (").append(attribute).append(" >= TIMESTAMP ");
+            addSlot(fragment, fragments, slots, SlotType.TIMESTAMP, index, ValuePart.FROM);
+            fragment.append(" AND ").append(attribute).append(" <= TIMESTAMP ");
+            addSlot(fragment, fragments, slots, SlotType.TIMESTAMP, index, ValuePart.TO);
+            fragment.append(") ");
+        }
+    }
+
+    /**
+     * @return the values of the criteria of a builder having the shape of this template, in the order of the slots
+     */
+    List<Object> valuesOf(final DocumentSearchBuilder builder) {
+        final List<Object> query = builder.getQuery();
+        final List<Object> values = new ArrayList<Object>(slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            final DocumentCriterion criterion = (DocumentCriterion) query.get(criteria[i]);
+            switch (parts[i]) {
+            case VALUE:
+                values.add(criterion.getValue());
+                break;
+            case VALUES:
+                values.add(criterion.getValues());
+                break;
+            case FROM:
+                values.add(criterion.getFrom());
+                break;
+            case TO:
+                values.add(criterion.getTo());
+                break;
+            }
+        }
+        return values;
+    }
+
+    int getSlotCount() {
+        return slots.length;
+    }
+
+    SlotType getSlot(final int index) {
+        return slots[index];
+    }
+
+    /**
+     * @return the index of the slot of the folder containing all the results, -1 if they can be in several folders
+     */
+    int getScopeSlot() {
+        return scopeSlot;
+    }
+
+    /**
+     * @param literals
+     *            the literals to write in each slot
+     * @return the statement
+     */
+    String bind(final String[] literals) {
+        int size = length;
+        for (final String literal : literals) {
+            size += literal.length();
+        }
+        final StringBuilder statement = new StringBuilder(size);
+        for (int i = 0; i < slots.length; i++) {
+            statement.append(fragments[i]).append(literals[i]);
+        }
+        statement.append(fragments[slots.length]);
+        return statement.toString();
+    }
+
+    private static final class Slot {
+
+        private final SlotType  type;
+        private final int       criterion;
+        private final ValuePart part;
+
+        Slot(final SlotType type, final int criterion, final ValuePart part) {
+            this.type = type;
+            this.criterion = criterion;
+            this.part = part;
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.client.bindings.spi.StandardAuthenticationProvider;
+
+/**
+ *
+ * Standard authentication which also counts the HTTP requests made for the call measured on the current thread, the
+ * binding asks for the headers of every request it sends.
+ *
+ */
+public class RoundTripCountingAuthenticationProvider extends StandardAuthenticationProvider {
+
+    private static final long serialVersionUID = 6014702283715960317L;
+
+    @Override
+    public Map<String, List<String>> getHTTPHeaders(final String url) {
+        CallStatistics.roundTrip();
+        return super.getHTTPHeaders(url);
+    }
+
+}
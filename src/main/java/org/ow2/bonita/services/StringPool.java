@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2011 BonitaSoft S.A.
+ * BonitaSoft, 31 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ow2.bonita.services;
+
+/**
+ *
+ * Bounded pool of canonical strings, used to share the values that many documents have in common (folder ids, authors,
+ * mime types, process UUIDs).
+ *
+ * Once the pool is full the least recently used value is evicted, so that it keeps deduplicating the values of the
+ * current listings.
+ *
+ */
+class StringPool {
+
+    private final LruCache<String, String> values;
+
+    StringPool(final int maxSize) {
+        this.values = new LruCache<String, String>(maxSize);
+    }
+
+    /**
+     * @return the pooled instance equal to the value, the value itself if it was not pooled yet, null for null
+     */
+    String get(final String value) {
+        if (value == null) {
+            return null;
+        }
+        final String pooled = values.putIfAbsent(value, value);
+        return pooled != null ? pooled : value;
+    }
+
+    void clear() {
+        values.clear();
+    }
+
+}
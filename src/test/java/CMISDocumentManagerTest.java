@@ -19,14 +19,35 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -44,14 +65,25 @@ import org.ow2.bonita.DocumentNotFoundException;
 import org.ow2.bonita.DocumentationCreationException;
 import org.ow2.bonita.facade.uuid.ProcessDefinitionUUID;
 import org.ow2.bonita.facade.uuid.ProcessInstanceUUID;
+import org.ow2.bonita.services.AsyncDocumentWriter;
 import org.ow2.bonita.services.CMISDocumentManager;
+import org.ow2.bonita.services.CMISDocumentManagerConfiguration;
+import org.ow2.bonita.services.ChunkedUpload;
 import org.ow2.bonita.services.ClassicCmisUserProvider;
+import org.ow2.bonita.services.CompactDocument;
+import org.ow2.bonita.services.DeletionListener;
+import org.ow2.bonita.services.DeletionReport;
 import org.ow2.bonita.services.Document;
+import org.ow2.bonita.services.DocumentCreation;
+import org.ow2.bonita.services.DocumentCreationResult;
+import org.ow2.bonita.services.DocumentField;
 import org.ow2.bonita.services.DocumentImpl;
 import org.ow2.bonita.services.DocumentIndex;
+import org.ow2.bonita.services.DocumentManagerMetrics;
 import org.ow2.bonita.services.DocumentSearchBuilder;
 import org.ow2.bonita.services.DocumentationManager;
 import org.ow2.bonita.services.Folder;
+import org.ow2.bonita.services.MeteredDocumentationManager;
 import org.ow2.bonita.services.SearchResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -110,6 +142,7 @@ public class CMISDocumentManagerTest {
     public void tearDown() {
         LOGGER.info("TEST " + " Time = " + (System.currentTimeMillis() - testStartTime) + " ms - " + name.getMethodName());
         testStartTime = -1;
+        ((CMISDocumentManager) manager).close();
     }
 
     @AfterClass
@@ -235,6 +268,43 @@ public class CMISDocumentManagerTest {
         assertTrue(doc.isLatestVersion());
     }
 
+    @Test
+    public void testListedDocumentsShareFolderValues() throws Exception {
+        Document doc1 = manager.createDocument("compact1", new ProcessDefinitionUUID("a"), new ProcessInstanceUUID("b"));
+        Document doc2 = manager.createDocument("compact2", new ProcessDefinitionUUID("a"), new ProcessInstanceUUID("b"));
+        List<Document> documents = manager.getChildrenDocuments(doc1.getParentFolderId());
+        assertEquals(2, documents.size());
+        assertSame(documents.get(0).getParentFolderId(), documents.get(1).getParentFolderId());
+        assertEquals(new ProcessDefinitionUUID("a"), documents.get(0).getProcessDefinitionUUID());
+        assertEquals(new ProcessInstanceUUID("b"), documents.get(1).getProcessInstanceUUID());
+        assertTrue(documents.contains(doc1));
+        assertTrue(documents.contains(doc2));
+        assertEquals(doc1.hashCode(), manager.getDocument(doc1.getId()).hashCode());
+        doc1.getCreationDate().setTime(0);
+        assertFalse(doc1.getCreationDate().getTime() == 0);
+    }
+
+    @Test
+    public void testCompactDocument() throws Exception {
+        CompactDocument doc = new CompactDocument("id1", "compact", "folder", "author", 1000L, Long.MIN_VALUE, true,
+                false, "1.0", "series", "compact.txt", "text/plain", 12, "definition", null);
+        CompactDocument same = new CompactDocument("id1", "compact", "folder", "author", 1000L, Long.MIN_VALUE, true,
+                false, "1.0", "series", "compact.txt", "text/plain", 12, "definition", null);
+        assertEquals(same, doc);
+        assertEquals(same.hashCode(), doc.hashCode());
+        assertEquals(new Date(1000L), doc.getCreationDate());
+        assertNull(doc.getLastModificationDate());
+        assertEquals("author", doc.getLastModifiedBy());
+        assertEquals(new ProcessDefinitionUUID("definition"), doc.getProcessDefinitionUUID());
+        assertNull(doc.getProcessInstanceUUID());
+        doc.setId("id2");
+        assertEquals("id2", doc.getId());
+        assertFalse(same.equals(doc));
+        same.setId("id2");
+        assertEquals(same, doc);
+        assertEquals(same.hashCode(), doc.hashCode());
+    }
+
     @Test
     public void testCreateADocumentThatAlreadyExists() throws Exception {
         String docName = "myDocument";
@@ -288,6 +358,540 @@ public class CMISDocumentManagerTest {
         assertEquals("The doc contents", new String(manager.getContent(doc)));
     }
 
+    @Test
+    public void testCreateDocumentWithContentStream() throws Exception {
+        byte[] contents = "The doc contents".getBytes();
+        Document doc = manager.createDocument("theDoc", new ProcessDefinitionUUID("myprocessxx"), new ProcessInstanceUUID(
+                "instancexx"), "testFile.txt", "plain/text", new ByteArrayInputStream(contents), contents.length);
+        assertEquals(contents.length, doc.getContentSize());
+        InputStream stream = manager.getContentStream(doc);
+        try {
+            assertEquals("The doc contents", new String(toByteArray(stream)));
+        } finally {
+            stream.close();
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(contents.length, manager.getContent(doc, Channels.newChannel(output)));
+        assertEquals("The doc contents", new String(output.toByteArray()));
+    }
+
+    @Test
+    public void testCreateDocuments() throws Exception {
+        ProcessDefinitionUUID definitionUUID = new ProcessDefinitionUUID("bulkProcess");
+        ProcessInstanceUUID instanceUUID = new ProcessInstanceUUID("bulkInstance");
+        manager.createDocument("existing", definitionUUID, instanceUUID);
+        List<DocumentCreation> creations = new ArrayList<DocumentCreation>();
+        creations.add(new DocumentCreation("doc1", "doc1.txt", "plain/text", "content 1".getBytes()));
+        creations.add(new DocumentCreation("existing"));
+        creations.add(new DocumentCreation("doc2", "doc2.txt", "plain/text", "content 2".getBytes()));
+        creations.add(new DocumentCreation("doc1"));
+        DocumentCreationResult result = manager.createDocuments(definitionUUID, instanceUUID, creations);
+        assertEquals(4, result.getDocuments().size());
+        assertEquals(2, result.getFailures().size());
+        assertTrue(result.getFailures().get(1) instanceof DocumentAlreadyExistsException);
+        assertTrue(result.getFailures().get(3) instanceof DocumentAlreadyExistsException);
+        Document doc2 = result.getDocuments().get(2);
+        assertEquals("doc2", doc2.getName());
+        assertEquals(instanceUUID, doc2.getProcessInstanceUUID());
+        assertEquals("content 2", new String(manager.getContent(doc2)));
+        assertEquals(3, manager.getChildrenDocuments(doc2.getParentFolderId()).size());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        DocumentManagerMetrics metrics = new DocumentManagerMetrics();
+        DocumentationManager meteredManager = MeteredDocumentationManager.newInstance(manager, metrics);
+        byte[] contents = "The doc contents".getBytes();
+        Document doc = meteredManager.createDocument("theDoc", new ProcessDefinitionUUID("metered"), new ProcessInstanceUUID(
+                "metered"), "testFile.txt", "plain/text", contents);
+        meteredManager.getContent(doc);
+        try {
+            meteredManager.getDocument("unknownId");
+            fail("document should not exist");
+        } catch (DocumentNotFoundException e) {
+            // expected
+        }
+        assertEquals(1, metrics.getCallCount("createDocument"));
+        assertEquals(1, metrics.getCallCount("getContent"));
+        assertEquals(1, metrics.getErrorCount("getDocument"));
+        assertEquals(contents.length, metrics.getBytesUploaded());
+        assertEquals(contents.length, metrics.getBytesDownloaded());
+        assertTrue(metrics.getMeanRoundTrips("createDocument") > 0);
+        assertTrue(metrics.getLatencyPercentileMillis("createDocument", 99) >= metrics.getMeanLatencyMillis("createDocument"));
+    }
+
+    @Test
+    public void testMetricsOfStreamedContents() throws Exception {
+        DocumentManagerMetrics metrics = new DocumentManagerMetrics();
+        DocumentationManager meteredManager = MeteredDocumentationManager.newInstance(manager, metrics);
+        byte[] contents = "The streamed contents".getBytes();
+        Document doc = manager.createDocument("streamedDoc", new ProcessDefinitionUUID("metered"), new ProcessInstanceUUID(
+                "metered"), "testFile.txt", "plain/text", contents);
+        InputStream stream = meteredManager.getContentStream(doc);
+        try {
+            assertTrue(Arrays.equals(contents, toByteArray(stream)));
+        } finally {
+            stream.close();
+        }
+        assertEquals(contents.length, metrics.getBytesDownloaded());
+        meteredManager.getContent(doc, Channels.newChannel(new ByteArrayOutputStream()));
+        assertEquals(2 * contents.length, metrics.getBytesDownloaded());
+    }
+
+    @Test
+    public void testClearWithListener() throws Exception {
+        manager.createDocument("doc1", new ProcessDefinitionUUID("clearProcess1"), new ProcessInstanceUUID("clearInstance1"));
+        manager.createDocument("doc2", new ProcessDefinitionUUID("clearProcess2"), new ProcessInstanceUUID("clearInstance2"));
+        manager.createDocument("doc3", manager.getRootFolder().getId(), "doc3.txt", "plain/text", "content".getBytes());
+        final List<String> processed = Collections.synchronizedList(new ArrayList<String>());
+        DeletionReport report = manager.clear(new DeletionListener() {
+
+            public void objectProcessed(String objectId, boolean deleted, int processedCount, int total) {
+                processed.add(objectId);
+            }
+        });
+        assertFalse(report.hasFailures());
+        assertEquals(3, report.getTotal());
+        assertEquals(3, report.getDeletedCount());
+        assertEquals(3, processed.size());
+        assertTrue(manager.getChildrenFolder(manager.getRootFolder().getId()).isEmpty());
+        assertTrue(manager.getChildrenDocuments(manager.getRootFolder().getId()).isEmpty());
+    }
+
+    @Test
+    public void testAsyncDocumentWriter() throws Exception {
+        ProcessDefinitionUUID definitionUUID = new ProcessDefinitionUUID("asyncProcess");
+        ProcessInstanceUUID instanceUUID = new ProcessInstanceUUID("asyncInstance");
+        AsyncDocumentWriter writer = new AsyncDocumentWriter(manager, 2, 2);
+        try {
+            List<Future<Document>> results = new ArrayList<Future<Document>>();
+            for (int i = 0; i < 5; i++) {
+                results.add(writer.createDocument("doc" + i, definitionUUID, instanceUUID, "doc.txt", "plain/text",
+                        ("content" + i).getBytes()));
+            }
+            Future<Document> duplicate = writer.createDocument("doc0", definitionUUID, instanceUUID, "doc.txt",
+                    "plain/text", "content".getBytes());
+            writer.flush();
+            for (int i = 0; i < 5; i++) {
+                assertTrue(results.get(i).isDone());
+                assertEquals("content" + i, new String(manager.getContent(results.get(i).get())));
+            }
+            try {
+                duplicate.get();
+                fail("the document already exists");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof DocumentAlreadyExistsException);
+            }
+            Document version = writer.createVersion(results.get(0).get().getId(), true, "doc.txt", "plain/text",
+                    "new content".getBytes()).get();
+            assertEquals("new content", new String(manager.getContent(version)));
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testAsyncDocumentWriterOrderAndBatches() throws Exception {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger batches = new AtomicInteger();
+        DocumentationManager stub = (DocumentationManager) Proxy.newProxyInstance(DocumentationManager.class
+                .getClassLoader(), new Class<?>[] { DocumentationManager.class }, new InvocationHandler() {
+
+            @SuppressWarnings("unchecked")
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (!method.getName().equals("createDocuments")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                Thread worker = Thread.currentThread();
+                if (!worker.isDaemon() || !worker.getName().startsWith("async-document-writer-")) {
+                    throw new IllegalStateException("not a worker of the writer: " + worker.getName());
+                }
+                batches.incrementAndGet();
+                List<Document> documents = new ArrayList<Document>();
+                for (DocumentCreation creation : (List<DocumentCreation>) args[2]) {
+                    sent.add(((ProcessInstanceUUID) args[1]).getValue() + "/" + creation.getName());
+                    documents.add(new DocumentImpl(creation.getName()));
+                }
+                return new DocumentCreationResult(documents, new HashMap<Integer, DocumentationCreationException>());
+            }
+        });
+        AsyncDocumentWriter writer = new AsyncDocumentWriter(stub, 50, 4);
+        List<Future<Document>> results = new ArrayList<Future<Document>>();
+        for (int i = 0; i < 2000; i++) {
+            results.add(writer.createDocument(String.valueOf(i), new ProcessDefinitionUUID("asyncProcess"),
+                    new ProcessInstanceUUID("instance" + i % 7), "doc.txt", "plain/text", new byte[0]));
+        }
+        writer.close();
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(String.valueOf(i), results.get(i).get().getName());
+        }
+        assertEquals(2000, sent.size());
+        assertTrue(batches.get() < 2000);
+        Map<String, Integer> lastOfInstance = new HashMap<String, Integer>();
+        for (String write : sent) {
+            String instance = write.substring(0, write.indexOf('/'));
+            int index = Integer.parseInt(write.substring(write.indexOf('/') + 1));
+            Integer last = lastOfInstance.put(instance, index);
+            assertTrue(last == null || last < index);
+        }
+        try {
+            writer.createDocument("closed", new ProcessDefinitionUUID("asyncProcess"), new ProcessInstanceUUID(
+                    "closedInstance"), "doc.txt", "plain/text", new byte[0]);
+            fail("the writer is closed");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertTrue(writer.flush(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFolderIndexSurvivesRestart() throws Exception {
+        File indexFile = File.createTempFile("folderIndex", ".bin");
+        try {
+            CMISDocumentManagerConfiguration configuration = new CMISDocumentManagerConfiguration().folderIndex(indexFile);
+            ProcessDefinitionUUID definitionUUID = new ProcessDefinitionUUID("indexedProcess");
+            ProcessInstanceUUID instanceUUID = new ProcessInstanceUUID("indexedInstance");
+            CMISDocumentManager firstManager = new CMISDocumentManager("ATOM", "http://whale:20080/xcmis/rest/cmisatom",
+                    "default", true, new ClassicCmisUserProvider("root", "exo"), "/", configuration);
+            Document doc1 = firstManager.createDocument("doc1", definitionUUID, instanceUUID);
+            firstManager.close();
+            assertTrue(indexFile.length() > 0);
+            CMISDocumentManager restartedManager = new CMISDocumentManager("ATOM",
+                    "http://whale:20080/xcmis/rest/cmisatom", "default", true, new ClassicCmisUserProvider("root", "exo"),
+                    "/", configuration);
+            Document doc2 = restartedManager.createDocument("doc2", definitionUUID, instanceUUID);
+            restartedManager.close();
+            assertEquals(doc1.getParentFolderId(), doc2.getParentFolderId());
+        } finally {
+            indexFile.delete();
+            new File(indexFile.getPath() + ".lock").delete();
+        }
+    }
+
+    @Test
+    public void testFolderIndexLockedByAnotherManager() throws Exception {
+        File indexFile = File.createTempFile("folderIndex", ".bin");
+        try {
+            CMISDocumentManagerConfiguration configuration = new CMISDocumentManagerConfiguration().folderIndex(indexFile);
+            CMISDocumentManager firstManager = new CMISDocumentManager("ATOM", "http://whale:20080/xcmis/rest/cmisatom",
+                    "default", true, new ClassicCmisUserProvider("root", "exo"), "/", configuration);
+            CMISDocumentManager secondManager = new CMISDocumentManager("ATOM", "http://whale:20080/xcmis/rest/cmisatom",
+                    "default", true, new ClassicCmisUserProvider("root", "exo"), "/", configuration);
+            try {
+                long indexLength = indexFile.length();
+                // the second manager works without the index
+                Document doc = secondManager.createDocument("doc1", new ProcessDefinitionUUID("lockedIndexProcess"),
+                        new ProcessInstanceUUID("lockedIndexInstance"));
+                assertNotNull(doc.getId());
+                assertEquals(indexLength, indexFile.length());
+                firstManager.createDocument("doc2", new ProcessDefinitionUUID("lockedIndexProcess"),
+                        new ProcessInstanceUUID("lockedIndexInstance"));
+                assertTrue(indexFile.length() > indexLength);
+            } finally {
+                secondManager.close();
+                firstManager.close();
+            }
+        } finally {
+            indexFile.delete();
+            new File(indexFile.getPath() + ".lock").delete();
+        }
+    }
+
+    @Test
+    public void testSearchWithFolderIndexAfterFolderDeletion() throws Exception {
+        File indexFile = File.createTempFile("folderIndex", ".bin");
+        try {
+            CMISDocumentManagerConfiguration configuration = new CMISDocumentManagerConfiguration().folderIndex(indexFile);
+            ProcessDefinitionUUID definitionUUID = new ProcessDefinitionUUID("indexedProcess");
+            ProcessInstanceUUID instanceUUID = new ProcessInstanceUUID("staleInstance");
+            CMISDocumentManager indexingManager = new CMISDocumentManager("ATOM",
+                    "http://whale:20080/xcmis/rest/cmisatom", "default", true, new ClassicCmisUserProvider("root", "exo"),
+                    "/", configuration);
+            indexingManager.createDocument("doc1", definitionUUID, instanceUUID);
+            indexingManager.close();
+            for (Folder folder : manager.getFolders("staleInstance")) {
+                manager.deleteFolder(folder);
+            }
+            manager.createDocument("doc2", definitionUUID, instanceUUID);
+            DocumentSearchBuilder searchBuilder = new DocumentSearchBuilder();
+            searchBuilder.criterion(DocumentIndex.PROCESS_INSTANCE_UUID).equalsTo(instanceUUID.getValue());
+            CMISDocumentManager restartedManager = new CMISDocumentManager("ATOM",
+                    "http://whale:20080/xcmis/rest/cmisatom", "default", true, new ClassicCmisUserProvider("root", "exo"),
+                    "/", configuration);
+            List<Document> results = restartedManager.search(searchBuilder, 0, 10).getDocuments();
+            restartedManager.close();
+            assertEquals(1, results.size());
+            assertEquals("doc2", results.get(0).getName());
+        } finally {
+            indexFile.delete();
+            new File(indexFile.getPath() + ".lock").delete();
+        }
+    }
+
+    @Test
+    public void testCreateInCachedFolderDeletedByAnotherManager() throws Exception {
+        CMISDocumentManager cachingManager = new CMISDocumentManager("ATOM", "http://whale:20080/xcmis/rest/cmisatom",
+                "default", true, new ClassicCmisUserProvider("root", "exo"), "/",
+                new CMISDocumentManagerConfiguration().objectCache(100, 100, 0));
+        ProcessDefinitionUUID definitionUUID = new ProcessDefinitionUUID("a");
+        ProcessInstanceUUID instanceUUID = new ProcessInstanceUUID("cachedInstance");
+        Document doc1 = cachingManager.createDocument("doc1", definitionUUID, instanceUUID, "doc1.txt", "text/plain",
+                "first".getBytes());
+        for (Folder folder : manager.getFolders("cachedInstance")) {
+            manager.deleteFolder(folder);
+        }
+        Document doc2 = cachingManager.createDocument("doc2", definitionUUID, instanceUUID, "doc2.txt", "text/plain",
+                "second".getBytes());
+        assertFalse(doc1.getParentFolderId().equals(doc2.getParentFolderId()));
+        assertEquals(instanceUUID, doc2.getProcessInstanceUUID());
+    }
+
+    @Test
+    public void testContentDeduplication() throws Exception {
+        CMISDocumentManager deduplicatingManager = new CMISDocumentManager("ATOM",
+                "http://whale:20080/xcmis/rest/cmisatom", "default", true, new ClassicCmisUserProvider("root", "exo"), "/",
+                new CMISDocumentManagerConfiguration().contentDeduplication(100));
+        byte[] contents = "the same template".getBytes();
+        ProcessDefinitionUUID definitionUUID = new ProcessDefinitionUUID("a");
+        Document doc1 = deduplicatingManager.createDocument("template", definitionUUID, new ProcessInstanceUUID("b1"),
+                "template.txt", "text/plain", contents);
+        Document doc2 = deduplicatingManager.createDocument("copy", definitionUUID, new ProcessInstanceUUID("b2"),
+                "copy.txt", "text/plain", contents);
+        assertFalse(doc1.getId().equals(doc2.getId()));
+        assertEquals("copy", doc2.getName());
+        assertEquals("copy.txt", doc2.getContentFileName());
+        assertEquals(contents.length, doc2.getContentSize());
+        assertTrue(Arrays.equals(contents, deduplicatingManager.getContent(doc2)));
+        Document doc3 = deduplicatingManager.createDocument("sameFileName", definitionUUID, new ProcessInstanceUUID("b3"),
+                "template.txt", "text/plain", contents);
+        assertEquals("sameFileName", doc3.getName());
+        assertEquals("template.txt", doc3.getContentFileName());
+        assertTrue(Arrays.equals(contents, deduplicatingManager.getContent(doc3)));
+    }
+
+    @Test
+    public void testContentCache() throws Exception {
+        File cacheDirectory = File.createTempFile("contentCache", "");
+        cacheDirectory.delete();
+        CMISDocumentManager cachingManager = new CMISDocumentManager("ATOM", "http://whale:20080/xcmis/rest/cmisatom",
+                "default", true, new ClassicCmisUserProvider("root", "exo"), "/",
+                new CMISDocumentManagerConfiguration().contentCache(cacheDirectory, 1024 * 1024));
+        byte[] contents = "cached content".getBytes();
+        Document doc = cachingManager.createDocument("cachedDoc", new ProcessDefinitionUUID("a"), new ProcessInstanceUUID(
+                "b"), "cached.txt", "text/plain", contents);
+        assertTrue(Arrays.equals(contents, cachingManager.getContent(doc)));
+        assertEquals(1, cacheDirectory.list().length);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(contents.length, cachingManager.getContent(doc, Channels.newChannel(output)));
+        assertTrue(Arrays.equals(contents, output.toByteArray()));
+        cachingManager.deleteDocument(doc.getId(), true);
+        assertEquals(0, cacheDirectory.list().length);
+        cacheDirectory.delete();
+    }
+
+    @Test
+    public void testDeleteFolderKeepsOtherCachedContents() throws Exception {
+        File cacheDirectory = File.createTempFile("contentCache", "");
+        cacheDirectory.delete();
+        CMISDocumentManager cachingManager = new CMISDocumentManager("ATOM", "http://whale:20080/xcmis/rest/cmisatom",
+                "default", true, new ClassicCmisUserProvider("root", "exo"), "/",
+                new CMISDocumentManagerConfiguration().contentCache(cacheDirectory, 1024 * 1024).objectCache(100, 100, 0));
+        Document deleted = cachingManager.createDocument("deletedDoc", new ProcessDefinitionUUID("a"),
+                new ProcessInstanceUUID("deletedInstance"), "deleted.txt", "text/plain", "deleted".getBytes());
+        Document kept = cachingManager.createDocument("keptDoc", new ProcessDefinitionUUID("a"), new ProcessInstanceUUID(
+                "keptInstance"), "kept.txt", "text/plain", "kept".getBytes());
+        cachingManager.getContent(deleted);
+        cachingManager.getContent(kept);
+        assertEquals(2, cacheDirectory.list().length);
+        for (Folder folder : cachingManager.getFolders("deletedInstance")) {
+            cachingManager.deleteFolder(folder);
+        }
+        assertEquals(1, cacheDirectory.list().length);
+        try {
+            cachingManager.getDocument(deleted.getId());
+            fail("document should be deleted");
+        } catch (DocumentNotFoundException e) {
+            // expected
+        }
+        assertEquals("kept", new String(cachingManager.getContent(kept)));
+        cachingManager.clear();
+        cacheDirectory.delete();
+    }
+
+    @Test
+    public void testGetContentRange() throws Exception {
+        Document doc = manager.createDocument("rangeDoc", new ProcessDefinitionUUID("a"), new ProcessInstanceUUID("b"),
+                "range.txt", "text/plain", "0123456789".getBytes());
+        assertEquals("234", new String(manager.getContent(doc, 2, 3)));
+        assertEquals("56789", new String(manager.getContent(doc, 5, -1)));
+        assertEquals("89", new String(manager.getContent(doc, 8, 10)));
+        InputStream stream = manager.getContentStream(doc, 1, 2);
+        try {
+            assertEquals("12", new String(toByteArray(stream)));
+        } finally {
+            stream.close();
+        }
+        assertEquals(0, manager.getContent(doc, 10, -1).length);
+        try {
+            manager.getContent(doc, 11, -1);
+            fail("the offset is after the end of the content");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            manager.getContentStream(doc, -1, 2);
+            fail("negative offset");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // the size known by the caller is not trusted
+        DocumentImpl stale = new DocumentImpl("rangeDoc", "range.txt", "text/plain", 0);
+        stale.setId(doc.getId());
+        assertEquals("345", new String(manager.getContent(stale, 3, 3)));
+    }
+
+    @Test
+    public void testChunkedUpload() throws Exception {
+        ChunkedUpload upload = manager.startUpload("chunkedDoc", new ProcessDefinitionUUID("a"), new ProcessInstanceUUID(
+                "b"), "chunked.txt", "text/plain");
+        assertEquals(5, upload.append(0, "01234".getBytes()));
+        // sent again after a lost answer
+        assertEquals(5, upload.append(0, "01234".getBytes()));
+        try {
+            upload.append(7, "789".getBytes());
+            fail("a chunk can't leave a gap");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        ChunkedUpload resumed = manager.getUpload(upload.getId());
+        assertEquals(5, resumed.getAcknowledgedLength());
+        assertEquals(10, resumed.append(resumed.getAcknowledgedLength(), "56789".getBytes()));
+        Document doc = resumed.complete();
+        assertEquals(10, doc.getContentSize());
+        assertEquals("0123456789", new String(manager.getContent(doc)));
+        assertNull(manager.getUpload(upload.getId()));
+
+        ChunkedUpload versionUpload = manager.startVersionUpload(doc.getId(), true, "chunked.txt", "text/plain");
+        versionUpload.append(0, "new content".getBytes());
+        Document version = versionUpload.complete();
+        assertEquals("new content", new String(manager.getContent(version)));
+    }
+
+    @Test
+    public void testChunkedUploadRecoveryAndExpiry() throws Exception {
+        File uploadDirectory = File.createTempFile("uploads", "");
+        uploadDirectory.delete();
+        CMISDocumentManagerConfiguration configuration = new CMISDocumentManagerConfiguration()
+                .uploadDirectory(uploadDirectory);
+        CMISDocumentManager uploadingManager = new CMISDocumentManager("ATOM", "http://whale:20080/xcmis/rest/cmisatom",
+                "default", true, new ClassicCmisUserProvider("root", "exo"), "/", configuration);
+        ChunkedUpload upload = uploadingManager.startUpload("recoveredDoc", new ProcessDefinitionUUID("a"),
+                new ProcessInstanceUUID("b"), "recovered.txt", "text/plain");
+        upload.append(0, "01234".getBytes());
+        // bytes of a chunk written before a crash, never acknowledged
+        RandomAccessFile data = new RandomAccessFile(new File(uploadDirectory, upload.getId() + ".data"), "rw");
+        try {
+            data.seek(5);
+            data.write("xyz".getBytes());
+        } finally {
+            data.close();
+        }
+        CMISDocumentManager restartedManager = new CMISDocumentManager("ATOM", "http://whale:20080/xcmis/rest/cmisatom",
+                "default", true, new ClassicCmisUserProvider("root", "exo"), "/", configuration);
+        ChunkedUpload resumed = restartedManager.getUpload(upload.getId());
+        assertEquals(5, resumed.getAcknowledgedLength());
+        resumed.append(5, "56789".getBytes());
+        assertEquals("0123456789", new String(restartedManager.getContent(resumed.complete())));
+        assertNull(restartedManager.getUpload("../" + uploadDirectory.getName() + "/" + upload.getId()));
+        assertNull(restartedManager.getUpload("not-an-upload"));
+
+        ChunkedUpload abandoned = restartedManager.startUpload("abandonedDoc", new ProcessDefinitionUUID("a"),
+                new ProcessInstanceUUID("b"), "abandoned.txt", "text/plain");
+        abandoned.append(0, "0".getBytes());
+        for (File file : uploadDirectory.listFiles()) {
+            file.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000L);
+        }
+        CMISDocumentManager expiringManager = new CMISDocumentManager("ATOM", "http://whale:20080/xcmis/rest/cmisatom",
+                "default", true, new ClassicCmisUserProvider("root", "exo"), "/", configuration
+                        .uploadExpiry(60 * 60 * 1000L));
+        assertNull(expiringManager.getUpload(abandoned.getId()));
+        assertEquals(0, uploadDirectory.list().length);
+        uploadingManager.close();
+        restartedManager.close();
+        expiringManager.close();
+        uploadDirectory.delete();
+    }
+
+    @Test
+    public void testCompressedContent() throws Exception {
+        CMISDocumentManager compressingManager = new CMISDocumentManager("ATOM",
+                "http://whale:20080/xcmis/rest/cmisatom", "default", true, new ClassicCmisUserProvider("root", "exo"), "/",
+                new CMISDocumentManagerConfiguration().compression("text/*"));
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            report.append("line ").append(i).append(" of the report\n");
+        }
+        byte[] contents = report.toString().getBytes();
+        Document doc = compressingManager.createDocument("report", new ProcessDefinitionUUID("a"), new ProcessInstanceUUID(
+                "b"), "report.txt", "text/plain", contents);
+        assertEquals("text/plain", doc.getContentMimeType());
+        assertEquals(contents.length, doc.getContentSize());
+        assertTrue(Arrays.equals(contents, compressingManager.getContent(doc)));
+        assertEquals("line 1 ", new String(compressingManager.getContent(doc, 21, 7)));
+        // read by a manager that does not compress
+        assertTrue(Arrays.equals(contents, manager.getContent(manager.getDocument(doc.getId()))));
+    }
+
+    @Test
+    public void testCompressedContentIsCached() throws Exception {
+        File cacheDirectory = File.createTempFile("contentCache", "");
+        cacheDirectory.delete();
+        CMISDocumentManager cachingManager = new CMISDocumentManager("ATOM", "http://whale:20080/xcmis/rest/cmisatom",
+                "default", true, new ClassicCmisUserProvider("root", "exo"), "/", new CMISDocumentManagerConfiguration()
+                        .compression("text/*").contentCache(cacheDirectory, 1024 * 1024));
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            report.append("line ").append(i).append(" of the report\n");
+        }
+        byte[] contents = report.toString().getBytes();
+        Document doc = cachingManager.createDocument("cachedReport", new ProcessDefinitionUUID("a"),
+                new ProcessInstanceUUID("b"), "report.txt", "text/plain", contents);
+        assertTrue(Arrays.equals(contents, cachingManager.getContent(doc)));
+        File[] cached = cacheDirectory.listFiles();
+        assertEquals(1, cached.length);
+        // a cache hit marks the cached content as recently used
+        cached[0].setLastModified(0);
+        assertTrue(Arrays.equals(contents, cachingManager.getContent(doc)));
+        assertTrue(cached[0].lastModified() > 0);
+        cachingManager.deleteDocument(doc.getId(), true);
+        cachingManager.close();
+        cacheDirectory.delete();
+    }
+
+    @Test
+    public void testCreateVersionsInARow() throws Exception {
+        Document doc = manager.createDocument("versioned", new ProcessDefinitionUUID("a"), new ProcessInstanceUUID("b"),
+                "v.txt", "text/plain", "v1".getBytes());
+        Document version2 = manager.createVersion(doc.getId(), true, "v.txt", "text/plain", "v2".getBytes());
+        Document version3 = manager.createVersion(version2.getId(), false, "v.txt", "text/plain", "v3".getBytes());
+        assertEquals(doc.getParentFolderId(), version3.getParentFolderId());
+        assertEquals(doc.getVersionSeriesId(), version3.getVersionSeriesId());
+        assertEquals(new ProcessInstanceUUID("b"), version3.getProcessInstanceUUID());
+        assertTrue(version3.isLatestVersion());
+        assertEquals("v3", new String(manager.getContent(version3)));
+        assertEquals(3, manager.getVersionsOfDocument(version3.getId()).size());
+    }
+
+    private static byte[] toByteArray(InputStream stream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = stream.read(buffer)) != -1) {
+            output.write(buffer, 0, n);
+        }
+        return output.toByteArray();
+    }
+
     @Test
     public void testCreateDocumentWithEmptyContent() throws Exception {
         byte[] contents = new byte[1];
@@ -438,7 +1042,7 @@ public class CMISDocumentManagerTest {
             return false;
         if (doc.getClass() != obj.getClass())
             return false;
-        DocumentImpl other = (DocumentImpl) obj;
+        Document other = obj;
         if (doc.getAuthor() == null) {
             if (other.getAuthor() != null)
                 return false;
@@ -514,6 +1118,78 @@ public class CMISDocumentManagerTest {
         assertEquals(doc2, results.get(0));
     }
 
+    @Test
+    public void testSearchTwiceWithSameShape() throws DocumentationCreationException, DocumentAlreadyExistsException {
+        Folder folder = manager.createFolder("testSearchTwiceWithSameShape");
+        Document doc1 = manager.createDocument("theDoc1", folder.getId(), "testFile.txt", "plain/text",
+                "The doc contents1".getBytes());
+        Document doc2 = manager.createDocument("it's theDoc2", folder.getId(), "testFile.txt", "plain/text",
+                "The doc contents2".getBytes());
+        DocumentSearchBuilder searchBuilder = new DocumentSearchBuilder();
+        searchBuilder.criterion(DocumentIndex.NAME).equalsTo("theDoc1");
+        List<Document> results = manager.search(searchBuilder, 0, 10).getDocuments();
+        assertEquals(1, results.size());
+        assertEquals(doc1, results.get(0));
+        searchBuilder = new DocumentSearchBuilder();
+        searchBuilder.criterion(DocumentIndex.NAME).equalsTo("it's theDoc2");
+        results = manager.search(searchBuilder, 0, 10).getDocuments();
+        assertEquals(1, results.size());
+        assertEquals(doc2, results.get(0));
+    }
+
+    @Test
+    public void testCount() throws DocumentationCreationException, DocumentAlreadyExistsException {
+        Folder folder = manager.createFolder("testCount");
+        manager.createDocument("theDoc1", folder.getId(), "testFile.txt", "plain/text", "The doc contents1".getBytes());
+        manager.createDocument("theDoc2", folder.getId(), "testFile.txt", "plain/text", "The doc contents2".getBytes());
+        manager.createDocument("other", folder.getId(), "testFile.txt", "plain/text", "The doc contents3".getBytes());
+        DocumentSearchBuilder searchBuilder = new DocumentSearchBuilder();
+        searchBuilder.criterion(DocumentIndex.NAME).in(Arrays.asList("theDoc1", "theDoc2"));
+        assertEquals(2, manager.count(searchBuilder));
+        searchBuilder = new DocumentSearchBuilder();
+        searchBuilder.criterion(DocumentIndex.PROCESS_INSTANCE_UUID).equalsTo("unknownInstance");
+        assertEquals(0, manager.count(searchBuilder));
+    }
+
+    @Test
+    public void testSearchCursor() throws DocumentationCreationException, DocumentAlreadyExistsException {
+        ProcessDefinitionUUID definitionUUID = new ProcessDefinitionUUID("cursorProcess");
+        ProcessInstanceUUID instanceUUID = new ProcessInstanceUUID("cursorInstance");
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            names.add(manager.createDocument("doc" + i, definitionUUID, instanceUUID).getName());
+        }
+        DocumentSearchBuilder searchBuilder = new DocumentSearchBuilder();
+        searchBuilder.criterion(DocumentIndex.PROCESS_INSTANCE_UUID).equalsTo(instanceUUID.getValue());
+        List<String> found = new ArrayList<String>();
+        for (Iterator<Document> cursor = manager.searchCursor(searchBuilder, 2); cursor.hasNext();) {
+            Document document = cursor.next();
+            assertEquals(instanceUUID, document.getProcessInstanceUUID());
+            found.add(document.getName());
+        }
+        assertEquals(5, found.size());
+        assertTrue(found.containsAll(names));
+    }
+
+    @Test
+    public void testSearchWithProjection() throws DocumentationCreationException, DocumentationCreationException,
+            DocumentAlreadyExistsException {
+        Folder folder = manager.createFolder("testSearchWithProjection");
+        Document doc = manager.createDocument("theDoc1", folder.getId(), "testFile.txt", "plain/text",
+                "The doc contents1".getBytes());
+        DocumentSearchBuilder searchBuilder = new DocumentSearchBuilder();
+        searchBuilder.criterion(DocumentIndex.NAME).equalsTo("theDoc1");
+        searchBuilder.select(DocumentField.NAME, DocumentField.CONTENT_SIZE);
+        SearchResult searchResult = manager.search(searchBuilder, 0, 10);
+        List<Document> results = searchResult.getDocuments();
+        assertEquals(1, results.size());
+        assertEquals(doc.getId(), results.get(0).getId());
+        assertEquals("theDoc1", results.get(0).getName());
+        assertEquals(doc.getContentSize(), results.get(0).getContentSize());
+        assertEquals(null, results.get(0).getContentFileName());
+        assertEquals(null, results.get(0).getParentFolderId());
+    }
+
     @Test
     public void testSearchWithNoResults() throws DocumentationCreationException, DocumentationCreationException,
             DocumentAlreadyExistsException {
@@ -644,6 +1320,46 @@ public class CMISDocumentManagerTest {
         assertEquals(doc22, results.get(0));
     }
 
+    @Test
+    public void testSearchByProcessInstUUIDAndNamesInParentheses() throws DocumentationCreationException,
+            DocumentAlreadyExistsException {
+        Folder proc1Folder = manager.createFolder("proc1");
+        Folder proc1InstFolder = manager.createFolder("inst1", proc1Folder.getId());
+        Folder proc1OtherInstFolder = manager.createFolder("inst2", proc1Folder.getId());
+        Document doc1 = manager.createDocument("theDoc1", proc1InstFolder.getId(), "testFile.txt", "plain/text",
+                "The doc contents11".getBytes());
+        Document doc2 = manager.createDocument("theDoc2", proc1InstFolder.getId(), "testFile.txt", "plain/text",
+                "The doc contents12".getBytes());
+        manager.createDocument("theDoc1", proc1OtherInstFolder.getId(), "testFile.txt", "plain/text",
+                "The doc contents21".getBytes());
+        DocumentSearchBuilder searchBuilder = new DocumentSearchBuilder();
+        searchBuilder.criterion(DocumentIndex.PROCESS_INSTANCE_UUID).equalsTo("inst1").and().leftParenthesis()
+                .criterion(DocumentIndex.NAME).equalsTo("theDoc1").or().criterion(DocumentIndex.NAME).equalsTo("theDoc2")
+                .rightParenthesis();
+        List<Document> results = manager.search(searchBuilder, 0, 10).getDocuments();
+        assertEquals(2, results.size());
+        assertTrue(results.contains(doc1));
+        assertTrue(results.contains(doc2));
+        for (Document result : results) {
+            assertEquals(proc1InstFolder.getId(), result.getParentFolderId());
+            assertEquals("inst1", result.getProcessInstanceUUID().getValue());
+        }
+
+        // an OR outside of the parentheses: the documents may be in any folder
+        searchBuilder = new DocumentSearchBuilder();
+        searchBuilder.criterion(DocumentIndex.PROCESS_INSTANCE_UUID).equalsTo("inst2").or().criterion(DocumentIndex.NAME)
+                .equalsTo("theDoc2");
+        results = manager.search(searchBuilder, 0, 10).getDocuments();
+        assertEquals(2, results.size());
+        for (Document result : results) {
+            if (result.getName().equals("theDoc2")) {
+                assertEquals(proc1InstFolder.getId(), result.getParentFolderId());
+            } else {
+                assertEquals(proc1OtherInstFolder.getId(), result.getParentFolderId());
+            }
+        }
+    }
+
     // Not supported
     // public void testSearchOnAllVersion() throws DocumentationCreationException,
     // DocumentationCreationException, DocumentAlreadyExistsException,